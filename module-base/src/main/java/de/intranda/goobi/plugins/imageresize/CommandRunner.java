@@ -0,0 +1,164 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Runs external commands with a timeout. A command that exceeds its timeout, or whose calling thread is interrupted, is killed together with
+ * all processes it started, e.g. the delegates of gm and convert, so a hung process can never block a step thread or keep running after the
+ * step has given up on it.
+ */
+@Log4j2
+public final class CommandRunner {
+
+    /**
+     * The time a killed process gets to exit and to close its output streams.
+     */
+    private static final long KILL_GRACE_MILLIS = 5000;
+
+    private static final ExecutorService STREAM_READERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "imageresize-command-output");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private CommandRunner() {
+    }
+
+    /**
+     * Runs a command and waits until it has finished.
+     *
+     * @param command the executable and its arguments
+     * @param timeoutMillis the maximum run time, or 0 to wait forever
+     * @return the exit code and output of the command, or a timed out result if the command was killed
+     * @throws IOException if the command could not be started
+     * @throws InterruptedException if the calling thread was interrupted; the command has been killed then
+     */
+    public static Result run(List<String> command, long timeoutMillis) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).start();
+        process.getOutputStream().close();
+        Future<List<String>> stdOut = STREAM_READERS.submit(() -> readLines(process.getInputStream()));
+        Future<List<String>> stdErr = STREAM_READERS.submit(() -> readLines(process.getErrorStream()));
+        boolean finished;
+        try {
+            if (timeoutMillis > 0) {
+                finished = process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+            } else {
+                process.waitFor();
+                finished = true;
+            }
+        } catch (InterruptedException e) {
+            killProcessTree(process);
+            throw e;
+        }
+        if (!finished) {
+            log.warn("Killing {} after {} ms", command.get(0), timeoutMillis);
+            killProcessTree(process);
+            return new Result(-1, getOutput(stdOut), getOutput(stdErr), true);
+        }
+        return new Result(process.exitValue(), getOutput(stdOut), getOutput(stdErr), false);
+    }
+
+    /**
+     * Reads the output of a long-lived process, like a gm batch worker, in the background. The caller can then wait for the result with a
+     * timeout and can be interrupted, which is not possible while blocking in a read of the process output.
+     */
+    static <T> Future<T> readOutput(Callable<T> reader) {
+        return STREAM_READERS.submit(reader);
+    }
+
+    /**
+     * Kills a process and all of its descendants, children first so they are not adopted by init and left running.
+     */
+    static void killProcessTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+        try {
+            if (!process.waitFor(KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.error("Process {} did not exit after it was killed", process.pid());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<String> readLines(InputStream stream) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static List<String> getOutput(Future<List<String>> output) throws InterruptedException {
+        try {
+            return output.get(KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            // a killed process may leave its output unreadable, the exit code is what matters
+            output.cancel(true);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * The exit code and output of a command.
+     */
+    public static class Result {
+        private final int exitCode;
+        private final List<String> stdOut;
+        private final List<String> stdErr;
+        private final boolean timedOut;
+
+        Result(int exitCode, List<String> stdOut, List<String> stdErr, boolean timedOut) {
+            this.exitCode = exitCode;
+            this.stdOut = stdOut;
+            this.stdErr = stdErr;
+            this.timedOut = timedOut;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public List<String> getStdOut() {
+            return stdOut;
+        }
+
+        public String getStdErr() {
+            return String.join("\n", stdErr);
+        }
+
+        /**
+         * Returns true if the command was killed because it exceeded its timeout.
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * Returns true if the command was terminated by a signal, e.g. by the OOM killer. The shell convention of 128 + signal number is used
+         * by the JDK on Unix.
+         */
+        public boolean isKilled() {
+            return timedOut || exitCode > 128;
+        }
+    }
+}
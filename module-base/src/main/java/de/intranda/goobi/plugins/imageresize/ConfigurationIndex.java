@@ -0,0 +1,353 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.SubnodeConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+
+import de.sub.goobi.config.ConfigPlugins;
+
+/**
+ * A compiled form of the plugin configuration, shared by all plugin instances in the JVM. The configuration file is parsed once, the
+ * &lt;config&gt; blocks are matched against project and step names without XPath queries and the &lt;imageConfig&gt; rules are resolved to
+ * immutable settings per collection and media type. The index is rebuilt when the modification time of the configuration file changes.
+ */
+public class ConfigurationIndex {
+
+    private static final Map<String, ConfigurationIndex> INSTANCES = new HashMap<>();
+
+    private final XMLConfiguration pluginConfig;
+    private final File configFile;
+    private final long lastModified;
+    private final List<ConfigBlock> configBlocks = new ArrayList<>();
+    private final ConcurrentMap<String, StepSettings> stepSettings = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the index of the configuration of the given plugin, loading the configuration file if it was not loaded yet or if it changed.
+     */
+    public static synchronized ConfigurationIndex getInstance(String pluginTitle) {
+        ConfigurationIndex index = INSTANCES.get(pluginTitle);
+        if (index == null || index.isOutdated()) {
+            XMLConfiguration pluginConfig = ConfigPlugins.getPluginConfig(pluginTitle);
+            pluginConfig.setExpressionEngine(new XPathExpressionEngine());
+            index = new ConfigurationIndex(pluginConfig);
+            INSTANCES.put(pluginTitle, index);
+        }
+        return index;
+    }
+
+    /**
+     * @param pluginConfig the plugin configuration, using the XPath expression engine
+     */
+    public ConfigurationIndex(XMLConfiguration pluginConfig) {
+        this.pluginConfig = pluginConfig;
+        this.configFile = pluginConfig.getFile();
+        this.lastModified = configFile == null ? 0 : configFile.lastModified();
+        List<HierarchicalConfiguration> blocks = pluginConfig.configurationsAt("config");
+        for (int i = 0; i < blocks.size(); i++) {
+            HierarchicalConfiguration block = blocks.get(i);
+            Set<String> projects = new HashSet<>(Arrays.asList(block.getStringArray("project")));
+            Set<String> steps = new HashSet<>(Arrays.asList(block.getStringArray("step")));
+            configBlocks.add(new ConfigBlock(projects, steps, i + 1));
+        }
+    }
+
+    private boolean isOutdated() {
+        // without a file there is nothing to compare, so the configuration is loaded again, as it was done before there was an index
+        return configFile == null || configFile.lastModified() != lastModified;
+    }
+
+    public XMLConfiguration getPluginConfig() {
+        return pluginConfig;
+    }
+
+    /**
+     * Finds the &lt;config&gt; block for a project and step. The order of configuration is:
+     * <ol>
+     * <li>project name and step name matches</li>
+     * <li>step name matches and project is *</li>
+     * <li>project name matches and step name is *</li>
+     * <li>project name and step name are *</li>
+     * </ol>
+     *
+     * @throws IllegalArgumentException if no block matches
+     */
+    public StepSettings getStepSettings(String projectName, String stepName) {
+        String key = projectName + '\u0000' + stepName;
+        StepSettings settings = stepSettings.get(key);
+        if (settings == null) {
+            ConfigBlock block = findBlock(projectName, stepName);
+            if (block == null) {
+                block = findBlock("*", stepName);
+            }
+            if (block == null) {
+                block = findBlock(projectName, "*");
+            }
+            if (block == null) {
+                block = findBlock("*", "*");
+            }
+            if (block == null) {
+                throw new IllegalArgumentException("No configuration found for project '" + projectName + "' and step '" + stepName + "'");
+            }
+            settings = new StepSettings(pluginConfig.configurationAt("config[" + block.position + "]"));
+            StepSettings existing = stepSettings.putIfAbsent(key, settings);
+            if (existing != null) {
+                settings = existing;
+            }
+        }
+        return settings;
+    }
+
+    private ConfigBlock findBlock(String projectName, String stepName) {
+        for (ConfigBlock block : configBlocks) {
+            if (block.projects.contains(projectName) && block.steps.contains(stepName)) {
+                return block;
+            }
+        }
+        return null;
+    }
+
+    private static class ConfigBlock {
+        private final Set<String> projects;
+        private final Set<String> steps;
+        private final int position;
+
+        private ConfigBlock(Set<String> projects, Set<String> steps, int position) {
+            this.projects = projects;
+            this.steps = steps;
+            this.position = position;
+        }
+    }
+
+    /**
+     * The settings of one &lt;config&gt; block, with its &lt;imageConfig&gt; rules parsed in advance.
+     */
+    public static class StepSettings {
+        private final SubnodeConfiguration config;
+        private final List<ImageRule> imageRules = new ArrayList<>();
+        private final ConcurrentMap<String, ResolvedSettings> resolvedSettings = new ConcurrentHashMap<>();
+
+        public StepSettings(SubnodeConfiguration config) {
+            this.config = config;
+            List<HierarchicalConfiguration> imageConfigs = config.configurationsAt("./imageConfig");
+            if (imageConfigs != null) {
+                for (HierarchicalConfiguration imageConfig : imageConfigs) {
+                    imageRules.add(new ImageRule(imageConfig));
+                }
+            }
+        }
+
+        /**
+         * Returns the configuration of the &lt;config&gt; block for all settings that are not part of an &lt;imageConfig&gt;.
+         */
+        public SubnodeConfiguration getConfig() {
+            return config;
+        }
+
+        /**
+         * Combines all &lt;imageConfig&gt; rules that match the collection and media type of a process. The resize size, the pyramidal TIFF
+         * encoding and the additional targets are taken from the first matching rule, the watermarks of all matching rules are used.
+         *
+         * @throws IllegalArgumentException if the first matching rule has an invalid &lt;pyramidTiff&gt; element
+         */
+        public ResolvedSettings resolve(String collectionName, String mediaType) {
+            String key = collectionName + '\u0000' + mediaType;
+            ResolvedSettings settings = resolvedSettings.get(key);
+            if (settings == null) {
+                int resizeTo = 0;
+                PyramidTiff pyramidTiff = null;
+                List<Target> targets = new ArrayList<>();
+                boolean first = true;
+                List<WatermarkDescription> watermarkDescriptions = new ArrayList<>();
+                for (ImageRule rule : imageRules) {
+                    if (rule.matches(collectionName, mediaType)) {
+                        if (first) {
+                            if (rule.error != null) {
+                                throw new IllegalArgumentException("Invalid <imageConfig collection=\"" + rule.collection + "\" mediaType=\""
+                                        + rule.mediaType + "\">: " + rule.error);
+                            }
+                            resizeTo = rule.resizeTo;
+                            pyramidTiff = rule.pyramidTiff;
+                            targets.addAll(rule.targets);
+                            first = false;
+                        }
+                        watermarkDescriptions.addAll(rule.watermarkDescriptions);
+                    }
+                }
+                settings = new ResolvedSettings(resizeTo, pyramidTiff, targets, watermarkDescriptions);
+                ResolvedSettings existing = resolvedSettings.putIfAbsent(key, settings);
+                if (existing != null) {
+                    settings = existing;
+                }
+            }
+            return settings;
+        }
+    }
+
+    private static class ImageRule {
+        private final String collection;
+        private final String mediaType;
+        private final int resizeTo;
+        private PyramidTiff pyramidTiff;
+        private final List<Target> targets = new ArrayList<>();
+        private final List<WatermarkDescription> watermarkDescriptions = new ArrayList<>();
+        private String error;
+
+        private ImageRule(HierarchicalConfiguration imageConfig) {
+            collection = imageConfig.getString("@collection", "");
+            mediaType = imageConfig.getString("@mediaType", "");
+            resizeTo = imageConfig.getInt("./resizeTo", 0);
+            for (HierarchicalConfiguration watermarkConfig : imageConfig.configurationsAt("./watermark")) {
+                watermarkDescriptions.add(descriptionFromConfig(watermarkConfig));
+            }
+            try {
+                pyramidTiff = pyramidTiffFromConfig(imageConfig);
+                for (HierarchicalConfiguration targetConfig : imageConfig.configurationsAt("./target")) {
+                    String destDir = targetConfig.getString("destDir");
+                    targets.add(new Target(destDir, targetConfig.getInt("resizeTo", 0), targetConfig.getBoolean("watermark", true),
+                            pyramidTiffFromConfig(targetConfig)));
+                }
+            } catch (IllegalArgumentException e) {
+                // reported by resolve(), so an invalid rule only fails the processes it applies to
+                error = e.getMessage();
+            }
+        }
+
+        private boolean matches(String wantedCollectionName, String wantedMediaType) {
+            boolean collectionMatches = collection.equals("*") || collection.equals(wantedCollectionName);
+            return collectionMatches && (mediaType.equals("*") || mediaType.equals(wantedMediaType));
+        }
+
+        /**
+         * Reads the &lt;pyramidTiff&gt; element of an &lt;imageConfig&gt; or &lt;target&gt;, or returns null if there is none.
+         */
+        private static PyramidTiff pyramidTiffFromConfig(HierarchicalConfiguration config) {
+            List<HierarchicalConfiguration> pyramidConfigs = config.configurationsAt("./pyramidTiff");
+            if (pyramidConfigs.isEmpty()) {
+                return null;
+            }
+            HierarchicalConfiguration pyramidConfig = pyramidConfigs.get(0);
+            return new PyramidTiff(pyramidConfig.getString("compression", "deflate"), pyramidConfig.getInt("quality", 85),
+                    pyramidConfig.getInt("tileSize", 256));
+        }
+
+        private static WatermarkDescription descriptionFromConfig(HierarchicalConfiguration watermarkConfig) {
+            String imageLocation = watermarkConfig.getString("image");
+            Path imagePath = imageLocation == null ? null : Paths.get(imageLocation);
+            String text = watermarkConfig.getString("text");
+            String location = watermarkConfig.getString("location", "southeast");
+            int xDistance = watermarkConfig.getInt("xDistance", 100);
+            int yDistance = watermarkConfig.getInt("yDistance", 100);
+            String font = watermarkConfig.getString("font", "Open-Sans");
+            String boxSize = watermarkConfig.getString("boxSize", "450x200");
+            String shadeSize = watermarkConfig.getString("shadeSize", "240x40");
+            return new WatermarkDescription(imagePath != null, imagePath, text, location, xDistance, yDistance, font, boxSize, shadeSize);
+        }
+    }
+
+    /**
+     * The image settings for one combination of project, step, collection and media type. Instances are shared between runs and never change.
+     */
+    public static class ResolvedSettings {
+        private final int resizeTo;
+        private final PyramidTiff pyramidTiff;
+        private final List<Target> targets;
+        private final List<WatermarkDescription> watermarkDescriptions;
+
+        private ResolvedSettings(int resizeTo, PyramidTiff pyramidTiff, List<Target> targets, List<WatermarkDescription> watermarkDescriptions) {
+            this.resizeTo = resizeTo;
+            this.pyramidTiff = pyramidTiff;
+            this.targets = Collections.unmodifiableList(targets);
+            this.watermarkDescriptions = Collections.unmodifiableList(watermarkDescriptions);
+        }
+
+        /**
+         * The maximum size of the longest side, or 0 if no &lt;imageConfig&gt; matches.
+         */
+        public int getResizeTo() {
+            return resizeTo;
+        }
+
+        /**
+         * The encoding of the images in destDir, or null to keep the format of the source images.
+         */
+        public PyramidTiff getPyramidTiff() {
+            return pyramidTiff;
+        }
+
+        /**
+         * The additional output targets besides destDir, in the order of the configuration.
+         */
+        public List<Target> getTargets() {
+            return targets;
+        }
+
+        /**
+         * Returns copies of the watermark descriptions, so a run can change them, e.g. to set the path of a rendered text watermark.
+         */
+        public List<WatermarkDescription> getWatermarkDescriptions() {
+            List<WatermarkDescription> copies = new ArrayList<>();
+            for (WatermarkDescription wd : watermarkDescriptions) {
+                copies.add(new WatermarkDescription(wd.isImage(), wd.getImagePath(), wd.getText(), wd.getLocation(), wd.getXDistance(),
+                        wd.getYDistance(), wd.getFont(), wd.getBoxSize(), wd.getShadeSize()));
+            }
+            return copies;
+        }
+    }
+
+    /**
+     * An additional output of an &lt;imageConfig&gt;, declared as &lt;target&gt;.
+     */
+    public static class Target {
+        private final String destDir;
+        private final int resizeTo;
+        private final boolean watermark;
+        private final PyramidTiff pyramidTiff;
+
+        public Target(String destDir, int resizeTo, boolean watermark, PyramidTiff pyramidTiff) {
+            this.destDir = destDir;
+            this.resizeTo = resizeTo;
+            this.watermark = watermark;
+            this.pyramidTiff = pyramidTiff;
+        }
+
+        /**
+         * The destination folder, e.g. "media" or a folder name from goobi_config.properties.
+         */
+        public String getDestDir() {
+            return destDir;
+        }
+
+        public int getResizeTo() {
+            return resizeTo;
+        }
+
+        /**
+         * True if the watermarks are rendered into this target, which is the default.
+         */
+        public boolean isWatermark() {
+            return watermark;
+        }
+
+        /**
+         * The encoding of this target, or null to keep the format of the source images.
+         */
+        public PyramidTiff getPyramidTiff() {
+            return pyramidTiff;
+        }
+    }
+}
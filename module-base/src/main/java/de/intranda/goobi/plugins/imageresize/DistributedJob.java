@@ -0,0 +1,160 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import lombok.Data;
+
+/**
+ * Everything a worker on another node needs to process the pages of a process: source folder, output targets, image settings and backend
+ * settings. The job is stored as the job.properties file of a {@link WorkQueue}.
+ *
+ * Watermark images are copied into the job folder, because paths from the plugin configuration or the local text watermark cache may not
+ * exist on the other nodes. Text watermarks have to be rendered into images before the job is written.
+ */
+@Data
+public class DistributedJob {
+
+    private Path sourceDir;
+    private List<OutputTarget> targets = new ArrayList<>();
+    private boolean fused;
+    private String backend = "graphicsmagick";
+    private String gmPath = "/usr/bin/gm";
+    private String convertPath = "/usr/bin/convert";
+    private String exifToolPath = "/usr/bin/exiftool";
+    private boolean gmBatch;
+    private int gmBatchMaxCommands = 500;
+    private long memoryBudget;
+    private int watermarkCacheSize = 32;
+    private long commandTimeout;
+    private long commandTimeoutPerMegabyte;
+    private int retries;
+    private long retryDelay;
+    private List<WatermarkDescription> watermarkDescriptions = new ArrayList<>();
+
+    /**
+     * Reads a job from the job.properties of a queue. The watermark images are resolved against the job folder.
+     */
+    public static DistributedJob fromQueue(WorkQueue queue) {
+        Properties properties = queue.getJob();
+        DistributedJob job = new DistributedJob();
+        job.sourceDir = Paths.get(properties.getProperty("sourceDir"));
+        int targets = Integer.parseInt(properties.getProperty("targets", "0"));
+        for (int i = 0; i < targets; i++) {
+            String prefix = "target." + i + ".";
+            PyramidTiff pyramidTiff = null;
+            if (properties.getProperty(prefix + "pyramid.compression") != null) {
+                pyramidTiff = new PyramidTiff(properties.getProperty(prefix + "pyramid.compression"),
+                        Integer.parseInt(properties.getProperty(prefix + "pyramid.quality")),
+                        Integer.parseInt(properties.getProperty(prefix + "pyramid.tileSize")));
+            }
+            job.targets.add(new OutputTarget(Paths.get(properties.getProperty(prefix + "destDir")),
+                    Integer.parseInt(properties.getProperty(prefix + "size")), Boolean.parseBoolean(properties.getProperty(prefix + "watermark")),
+                    pyramidTiff));
+        }
+        job.fused = Boolean.parseBoolean(properties.getProperty("fused"));
+        job.backend = properties.getProperty("backend", job.backend);
+        job.gmPath = properties.getProperty("gmPath", job.gmPath);
+        job.convertPath = properties.getProperty("convertPath", job.convertPath);
+        job.exifToolPath = properties.getProperty("exifToolPath", job.exifToolPath);
+        job.gmBatch = Boolean.parseBoolean(properties.getProperty("gmBatch"));
+        job.gmBatchMaxCommands = Integer.parseInt(properties.getProperty("gmBatchMaxCommands", String.valueOf(job.gmBatchMaxCommands)));
+        job.memoryBudget = Long.parseLong(properties.getProperty("memoryBudget", "0"));
+        job.watermarkCacheSize = Integer.parseInt(properties.getProperty("watermarkCacheSize", String.valueOf(job.watermarkCacheSize)));
+        job.commandTimeout = Long.parseLong(properties.getProperty("commandTimeout", "0"));
+        job.commandTimeoutPerMegabyte = Long.parseLong(properties.getProperty("commandTimeoutPerMegabyte", "0"));
+        job.retries = Integer.parseInt(properties.getProperty("retries", "0"));
+        job.retryDelay = Long.parseLong(properties.getProperty("retryDelay", "0"));
+        int watermarks = Integer.parseInt(properties.getProperty("watermarks", "0"));
+        for (int i = 0; i < watermarks; i++) {
+            String prefix = "watermark." + i + ".";
+            Path imagePath = queue.getJobDir().resolve(properties.getProperty(prefix + "image"));
+            job.watermarkDescriptions.add(new WatermarkDescription(true, imagePath, null, properties.getProperty(prefix + "location"),
+                    Integer.parseInt(properties.getProperty(prefix + "xDistance")), Integer.parseInt(properties.getProperty(prefix + "yDistance")),
+                    null, null, null));
+        }
+        return job;
+    }
+
+    /**
+     * Returns the job as properties for {@link WorkQueue#create}.
+     */
+    public Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("sourceDir", sourceDir.toString());
+        properties.setProperty("targets", String.valueOf(targets.size()));
+        for (int i = 0; i < targets.size(); i++) {
+            String prefix = "target." + i + ".";
+            properties.setProperty(prefix + "destDir", targets.get(i).getDestDir().toString());
+            properties.setProperty(prefix + "size", String.valueOf(targets.get(i).getSize()));
+            properties.setProperty(prefix + "watermark", String.valueOf(targets.get(i).isWatermark()));
+            PyramidTiff pyramidTiff = targets.get(i).getPyramidTiff();
+            if (pyramidTiff != null) {
+                properties.setProperty(prefix + "pyramid.compression", pyramidTiff.getCompression());
+                properties.setProperty(prefix + "pyramid.quality", String.valueOf(pyramidTiff.getQuality()));
+                properties.setProperty(prefix + "pyramid.tileSize", String.valueOf(pyramidTiff.getTileSize()));
+            }
+        }
+        properties.setProperty("fused", String.valueOf(fused));
+        properties.setProperty("backend", backend);
+        properties.setProperty("gmPath", gmPath);
+        properties.setProperty("convertPath", convertPath);
+        properties.setProperty("exifToolPath", exifToolPath);
+        properties.setProperty("gmBatch", String.valueOf(gmBatch));
+        properties.setProperty("gmBatchMaxCommands", String.valueOf(gmBatchMaxCommands));
+        properties.setProperty("memoryBudget", String.valueOf(memoryBudget));
+        properties.setProperty("watermarkCacheSize", String.valueOf(watermarkCacheSize));
+        properties.setProperty("commandTimeout", String.valueOf(commandTimeout));
+        properties.setProperty("commandTimeoutPerMegabyte", String.valueOf(commandTimeoutPerMegabyte));
+        properties.setProperty("retries", String.valueOf(retries));
+        properties.setProperty("retryDelay", String.valueOf(retryDelay));
+        properties.setProperty("watermarks", String.valueOf(watermarkDescriptions.size()));
+        for (int i = 0; i < watermarkDescriptions.size(); i++) {
+            WatermarkDescription wd = watermarkDescriptions.get(i);
+            String prefix = "watermark." + i + ".";
+            properties.setProperty(prefix + "image", getWatermarkFilename(i));
+            properties.setProperty(prefix + "location", wd.getLocation());
+            properties.setProperty(prefix + "xDistance", String.valueOf(wd.getXDistance()));
+            properties.setProperty(prefix + "yDistance", String.valueOf(wd.getYDistance()));
+        }
+        return properties;
+    }
+
+    /**
+     * Returns the watermark images that need to be copied into the job folder, by their name in the job folder.
+     */
+    public Map<String, Path> getFiles() {
+        Map<String, Path> files = new LinkedHashMap<>();
+        for (int i = 0; i < watermarkDescriptions.size(); i++) {
+            files.put(getWatermarkFilename(i), watermarkDescriptions.get(i).getImagePath());
+        }
+        return files;
+    }
+
+    private String getWatermarkFilename(int index) {
+        String filename = watermarkDescriptions.get(index).getImagePath().getFileName().toString();
+        int dot = filename.lastIndexOf('.');
+        return "watermark-" + index + (dot < 0 ? "" : filename.substring(dot));
+    }
+
+    /**
+     * Creates the image processing backend of the job, see the configuration option "backend".
+     *
+     * @param threads the number of pages processed in parallel, used for the size of the gm batch pool
+     */
+    public ImageProcessingBackend createBackend(int threads, StageMetrics stageMetrics) {
+        if ("java".equalsIgnoreCase(backend)) {
+            return new JavaImageBackend(memoryBudget);
+        }
+        GmBatchPool batchPool = gmBatch ? GmBatchPool.getShared(gmPath, threads, gmBatchMaxCommands) : null;
+        GraphicsMagickBackend graphicsMagickBackend = new GraphicsMagickBackend(gmPath, convertPath, exifToolPath, batchPool, memoryBudget);
+        graphicsMagickBackend.setStageMetrics(stageMetrics);
+        graphicsMagickBackend.setCommandTimeout(commandTimeout, commandTimeoutPerMegabyte);
+        return graphicsMagickBackend;
+    }
+}
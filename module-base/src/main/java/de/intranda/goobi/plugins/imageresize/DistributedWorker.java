@@ -0,0 +1,226 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Claims chunks of a {@link WorkQueue} and processes their pages. The step uses a worker for its own job while it waits for the job to
+ * finish; on other nodes the worker is started from the command line and processes the jobs of all processes in a queue folder:
+ *
+ * <pre>
+ * java -cp "plugin_intranda_step_image_resize_and_watermark-base.jar:/path/to/goobi/WEB-INF/lib/*" \
+ *     de.intranda.goobi.plugins.imageresize.DistributedWorker /shared/imageresize-queue [--threads N] [--scratchDir DIR] [--once]
+ * </pre>
+ *
+ * With --once the worker exits as soon as there is nothing left to claim, which is useful for testing with several worker JVMs on one machine.
+ */
+@Log4j2
+public class DistributedWorker implements AutoCloseable {
+
+    private static final long IDLE_SLEEP_MILLIS = 2000;
+
+    private final WorkQueue queue;
+    private final PageProcessor pageProcessor;
+    private final Path sourceDir;
+    private final String workerId;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService heartbeat;
+
+    /**
+     * @param queue the job to work on
+     * @param pageProcessor the resize and watermark chain for the pages of the job
+     * @param sourceDir the folder of the source images
+     * @param threads the number of pages processed in parallel
+     */
+    public DistributedWorker(WorkQueue queue, PageProcessor pageProcessor, Path sourceDir, int threads) {
+        this.queue = queue;
+        this.pageProcessor = pageProcessor;
+        this.sourceDir = sourceDir;
+        this.workerId = getDefaultWorkerId() + "-" + Thread.currentThread().getId();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Returns host name and process id of this JVM, e.g. "12345@goobi-worker-2".
+     */
+    public static String getDefaultWorkerId() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    /**
+     * Claims and processes chunks until no chunk can be claimed anymore, because all of them are finished or leased by other workers.
+     *
+     * @return the number of chunks processed
+     */
+    public int processAvailableChunks() throws IOException, InterruptedException {
+        int chunks = 0;
+        WorkQueue.Lease lease;
+        while ((lease = queue.claim(workerId)) != null) {
+            processChunk(lease);
+            chunks++;
+        }
+        return chunks;
+    }
+
+    private void processChunk(WorkQueue.Lease lease) throws IOException, InterruptedException {
+        long heartbeatInterval = Math.max(1000, queue.getLeaseTimeout() / 3);
+        ScheduledFuture<?> heartbeatFuture = heartbeat.scheduleWithFixedDelay(() -> {
+            if (!lease.heartbeat()) {
+                log.warn("Lost the lease on {} of {}", lease.getChunkName(), queue.getJobDir());
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (String page : lease.getPages()) {
+                Path source = sourceDir.resolve(page);
+                futures.add(executor.submit(() -> {
+                    pageProcessor.process(source);
+                    return null;
+                }));
+            }
+            Map<String, String> failures = new LinkedHashMap<>();
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        futures.get(i).get();
+                    } catch (ExecutionException e) {
+                        log.error(e.getCause());
+                        failures.put(lease.getPages().get(i), e.getCause().getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                for (Future<Void> future : futures) {
+                    future.cancel(true);
+                }
+                // let another worker take over the chunk right away
+                lease.release();
+                throw e;
+            }
+            try {
+                lease.complete(failures);
+            } catch (NoSuchFileException e) {
+                log.debug("Job {} was removed before {} was finished", queue.getJobDir(), lease.getChunkName());
+            }
+        } finally {
+            heartbeatFuture.cancel(false);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        heartbeat.shutdownNow();
+    }
+
+    /**
+     * Processes the jobs of a queue folder until the JVM is stopped, or until there is nothing left to do if --once is given.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length == 0) {
+            System.err.println("usage: DistributedWorker QUEUE_DIR [--threads N] [--scratchDir DIR] [--once]");
+            System.exit(1);
+        }
+        Path queueDir = Paths.get(args[0]);
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path scratchDir = Paths.get(System.getProperty("java.io.tmpdir"));
+        boolean once = false;
+        for (int i = 1; i < args.length; i++) {
+            if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--scratchDir".equals(args[i]) && i + 1 < args.length) {
+                scratchDir = Paths.get(args[++i]);
+            } else if ("--once".equals(args[i])) {
+                once = true;
+            }
+        }
+        log.info("Worker {} watching {} with {} threads", getDefaultWorkerId(), queueDir, threads);
+        while (true) {
+            int chunks = 0;
+            try {
+                for (Path jobDir : WorkQueue.listJobs(queueDir)) {
+                    chunks += processJob(jobDir, scratchDir, threads);
+                }
+            } catch (IOException e) {
+                log.error("Error reading the queue folder {}", queueDir, e);
+            }
+            if (chunks == 0) {
+                if (once) {
+                    return;
+                }
+                Thread.sleep(IDLE_SLEEP_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Processes all chunks of one job that can be claimed. Backend, caches and the staging area are created for the job and closed afterwards.
+     *
+     * @return the number of chunks processed
+     */
+    static int processJob(Path jobDir, Path scratchDir, int threads) throws InterruptedException {
+        WorkQueue queue;
+        DistributedJob job;
+        try {
+            queue = WorkQueue.open(jobDir);
+            job = DistributedJob.fromQueue(queue);
+        } catch (IOException | RuntimeException e) {
+            // removed by the step in the meantime
+            log.debug("Could not read job {}: {}", jobDir, e.getMessage());
+            return 0;
+        }
+        if (queue.isComplete() || queue.isCancelled()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        StageMetrics stageMetrics = new StageMetrics(StageMetrics.MAX_SAMPLES, ImageProcessingMetrics.getInstance().getStageMetrics());
+        ImageProcessingBackend backend = new MeteredBackend(job.createBackend(threads, stageMetrics), stageMetrics);
+        ImageDimensionProbe dimensionProbe = new ImageDimensionProbe(backend);
+        WatermarkCache watermarkCache = new WatermarkCache(backend, dimensionProbe, job.getWatermarkCacheSize());
+        int chunks = 0;
+        try {
+            for (OutputTarget target : job.getTargets()) {
+                Files.createDirectories(target.getDestDir());
+            }
+            try (PageProcessor pageProcessor = new PageProcessor(backend, dimensionProbe, watermarkCache, scratchDir, job.getTargets(), stageMetrics,
+                    job.getWatermarkDescriptions(), job.isFused(), jobDir.getFileName().toString());
+                    DistributedWorker worker = new DistributedWorker(queue, pageProcessor, job.getSourceDir(), threads)) {
+                pageProcessor.setRetries(job.getRetries(), job.getRetryDelay());
+                pageProcessor.prepare();
+                chunks = worker.processAvailableChunks();
+            }
+        } catch (IOException | ImageProcessingException e) {
+            log.error("Error processing job {}", jobDir, e);
+        } finally {
+            watermarkCache.close();
+            backend.close();
+        }
+        if (chunks > 0) {
+            StringBuilder summary = new StringBuilder();
+            summary.append(String.format("Processed %d chunks of %s in %.1f s", chunks, jobDir.getFileName(),
+                    (System.nanoTime() - start) / 1000000000.0));
+            for (StageStatistics statistics : stageMetrics.getStatistics()) {
+                summary.append("; ").append(statistics);
+            }
+            log.info(summary);
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,117 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The pages of a run grouped by their content, e.g. blank separator pages, colour targets or plates that were scanned once and inserted
+ * several times. Only the first page of each group has to be processed, the results of the others are the same.
+ *
+ * Pages are compared by size first, so only pages that share their size with another page are read at all. Those are compared by their
+ * SHA-256 hash, calculated in parallel.
+ */
+public class DuplicatePages {
+
+    private final List<Path> uniquePages = new ArrayList<>();
+    private final Map<Path, List<Path>> duplicates = new HashMap<>();
+
+    private DuplicatePages() {
+    }
+
+    /**
+     * Groups the pages by their content.
+     *
+     * @param pages the pages in processing order; the first page of each group is the one that is processed
+     * @param threads the number of files hashed at the same time
+     */
+    public static DuplicatePages find(List<Path> pages, int threads) throws IOException, InterruptedException {
+        Map<Path, Long> sizes = new HashMap<>();
+        Map<Long, Integer> pagesBySize = new HashMap<>();
+        for (Path page : pages) {
+            long size = Files.size(page);
+            sizes.put(page, size);
+            pagesBySize.merge(size, 1, Integer::sum);
+        }
+        List<Path> candidates = new ArrayList<>();
+        for (Path page : pages) {
+            if (pagesBySize.get(sizes.get(page)) > 1) {
+                candidates.add(page);
+            }
+        }
+        Map<Path, String> hashes = hash(candidates, threads);
+
+        DuplicatePages result = new DuplicatePages();
+        Map<String, Path> firstPages = new HashMap<>();
+        for (Path page : pages) {
+            String hash = hashes.get(page);
+            Path first = hash == null ? null : firstPages.putIfAbsent(sizes.get(page) + ";" + hash, page);
+            if (first == null) {
+                result.uniquePages.add(page);
+            } else {
+                result.duplicates.computeIfAbsent(first, p -> new ArrayList<>()).add(page);
+            }
+        }
+        return result;
+    }
+
+    private static Map<Path, String> hash(List<Path> files, int threads) throws IOException, InterruptedException {
+        Map<Path, String> hashes = new LinkedHashMap<>();
+        if (files.isEmpty()) {
+            return hashes;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            Map<Path, Future<String>> futures = new LinkedHashMap<>();
+            for (Path file : files) {
+                futures.put(file, executor.submit(() -> ProcessingManifest.hash(file)));
+            }
+            for (Map.Entry<Path, Future<String>> future : futures.entrySet()) {
+                hashes.put(future.getKey(), future.getValue().get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the pages that have to be processed, in processing order.
+     */
+    public List<Path> getUniquePages() {
+        return uniquePages;
+    }
+
+    /**
+     * Returns the other pages with the same content as a page returned by {@link #getUniquePages()}.
+     */
+    public List<Path> getDuplicates(Path page) {
+        return duplicates.getOrDefault(page, Collections.emptyList());
+    }
+
+    /**
+     * Returns the number of pages that do not have to be processed.
+     */
+    public int getDuplicateCount() {
+        int count = 0;
+        for (List<Path> pages : duplicates.values()) {
+            count += pages.size();
+        }
+        return count;
+    }
+}
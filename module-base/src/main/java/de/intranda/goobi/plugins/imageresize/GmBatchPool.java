@@ -0,0 +1,345 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * A pool of long-lived "gm batch" processes. GraphicsMagick reads one command per line from stdin, so the pool can run convert, identify and
+ * composite commands without forking a new process for each of them.
+ *
+ * The pools are shared by all steps and distributed jobs of the JVM, one per gm binary and command limit, so the processes outlive a single
+ * run. Workers are started lazily and stopped when they have been idle for a few minutes; the remaining ones are stopped when the JVM shuts
+ * down. Goobi has no callback for unloading a plugin, but a gm batch process also exits on its own when its stdin is closed.
+ *
+ * A worker is health-checked when it is started, and it is replaced after a failed command, after an I/O error or after it has run the
+ * configured number of commands. A worker whose command exceeds its timeout, or whose calling thread is interrupted, is killed and replaced
+ * as well.
+ */
+@Log4j2
+public class GmBatchPool implements AutoCloseable {
+
+    private static final String PASS_MARKER = "__GM_BATCH_PASS__";
+    private static final String FAIL_MARKER = "__GM_BATCH_FAIL__";
+    private static final long HEALTH_CHECK_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Map<String, GmBatchPool> SHARED_POOLS = new HashMap<>();
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "imageresize-gm-batch-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        REAPER.scheduleWithFixedDelay(GmBatchPool::stopIdleWorkersOfSharedPools, 1, 1, TimeUnit.MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread(GmBatchPool::closeSharedPools, "imageresize-gm-batch-shutdown"));
+    }
+
+    private final String gmPath;
+    private volatile int maxWorkers;
+    private final int maxCommandsPerWorker;
+    private final BlockingQueue<Worker> idleWorkers = new LinkedBlockingQueue<>();
+    private final List<Worker> allWorkers = new ArrayList<>();
+    private boolean closed;
+
+    /**
+     * @param gmPath the path to the gm binary
+     * @param maxWorkers the maximum number of gm processes running at the same time
+     * @param maxCommandsPerWorker the number of commands after which a worker is replaced by a fresh process
+     */
+    GmBatchPool(String gmPath, int maxWorkers, int maxCommandsPerWorker) {
+        this.gmPath = gmPath;
+        this.maxWorkers = Math.max(1, maxWorkers);
+        this.maxCommandsPerWorker = Math.max(1, maxCommandsPerWorker);
+    }
+
+    /**
+     * Returns the pool of the JVM for the gm binary and command limit, creating it on first use. The number of workers is raised if more are
+     * requested than the pool has, so every step can use as many workers as it has threads. The total number of pages processed at the same
+     * time is limited by the {@link ImageProcessingScheduler} anyway.
+     *
+     * @param gmPath the path to the gm binary
+     * @param maxWorkers the number of gm processes the caller may use at the same time
+     * @param maxCommandsPerWorker the number of commands after which a worker is replaced by a fresh process
+     */
+    public static GmBatchPool getShared(String gmPath, int maxWorkers, int maxCommandsPerWorker) {
+        synchronized (SHARED_POOLS) {
+            GmBatchPool pool = SHARED_POOLS.computeIfAbsent(gmPath + "|" + Math.max(1, maxCommandsPerWorker),
+                    key -> new GmBatchPool(gmPath, maxWorkers, maxCommandsPerWorker));
+            pool.maxWorkers = Math.max(pool.maxWorkers, maxWorkers);
+            return pool;
+        }
+    }
+
+    private static void stopIdleWorkersOfSharedPools() {
+        List<GmBatchPool> pools;
+        synchronized (SHARED_POOLS) {
+            pools = new ArrayList<>(SHARED_POOLS.values());
+        }
+        long now = System.currentTimeMillis();
+        for (GmBatchPool pool : pools) {
+            pool.stopIdleWorkers(now - IDLE_TIMEOUT_MILLIS);
+        }
+    }
+
+    private static void closeSharedPools() {
+        synchronized (SHARED_POOLS) {
+            for (GmBatchPool pool : SHARED_POOLS.values()) {
+                pool.close();
+            }
+            SHARED_POOLS.clear();
+        }
+    }
+
+    /**
+     * Runs a gm command, e.g. "convert in.tif -resize 1500x1500&gt; out.tif", on one of the workers.
+     *
+     * @param params the command and its arguments, without the gm executable
+     * @param timeoutMillis the time after which the worker is killed, or 0 for no timeout
+     * @return the result of the command
+     */
+    public Result run(List<String> params, long timeoutMillis) throws IOException, InterruptedException {
+        Worker worker = borrowWorker();
+        boolean healthy = false;
+        try {
+            Result result = worker.run(params, timeoutMillis);
+            healthy = result.isSuccess() && worker.commands < maxCommandsPerWorker;
+            return result;
+        } finally {
+            returnWorker(worker, healthy);
+        }
+    }
+
+    private Worker borrowWorker() throws IOException, InterruptedException {
+        while (true) {
+            Worker worker = idleWorkers.poll();
+            if (worker != null) {
+                return worker;
+            }
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("The gm batch pool is closed.");
+                }
+                if (allWorkers.size() < maxWorkers) {
+                    worker = new Worker();
+                    allWorkers.add(worker);
+                }
+            }
+            if (worker != null) {
+                try {
+                    worker.start();
+                } catch (IOException | InterruptedException e) {
+                    removeWorker(worker);
+                    throw e;
+                }
+                return worker;
+            }
+            // all workers are busy, wait for one of them or for a free slot if a worker was removed
+            worker = idleWorkers.poll(1, TimeUnit.SECONDS);
+            if (worker != null) {
+                return worker;
+            }
+        }
+    }
+
+    private void returnWorker(Worker worker, boolean healthy) {
+        if (healthy) {
+            worker.lastUsed = System.currentTimeMillis();
+            idleWorkers.add(worker);
+            return;
+        }
+        // replace the worker: stop it and let the next request start a fresh process
+        log.debug("replacing gm batch process after {} commands", worker.commands);
+        worker.stop();
+        removeWorker(worker);
+    }
+
+    private synchronized void removeWorker(Worker worker) {
+        allWorkers.remove(worker);
+    }
+
+    /**
+     * Stops the idle workers that were last used before the given time. A worker that is borrowed concurrently is not affected, because it is
+     * only stopped if it could be taken out of the idle queue.
+     */
+    void stopIdleWorkers(long lastUsedBefore) {
+        for (Worker worker : new ArrayList<>(idleWorkers)) {
+            if (worker.lastUsed < lastUsedBefore && idleWorkers.remove(worker)) {
+                log.debug("stopping gm batch process that was idle since {}", worker.lastUsed);
+                worker.stop();
+                removeWorker(worker);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of running gm processes.
+     */
+    synchronized int getWorkerCount() {
+        return allWorkers.size();
+    }
+
+    /**
+     * Stops all gm processes.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Worker worker : allWorkers) {
+            worker.stop();
+        }
+        allWorkers.clear();
+        idleWorkers.clear();
+    }
+
+    /**
+     * Quotes an argument for the gm batch command line, so that spaces and quotes in file names are preserved.
+     */
+    static String quote(String argument) {
+        return "\"" + argument.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * The output of a single gm command.
+     */
+    public static class Result {
+        private final boolean success;
+        private final List<String> output;
+        private final boolean timedOut;
+
+        Result(boolean success, List<String> output) {
+            this(success, output, false);
+        }
+
+        Result(boolean success, List<String> output, boolean timedOut) {
+            this.success = success;
+            this.output = output;
+            this.timedOut = timedOut;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * The lines the command wrote to stdout and stderr.
+         */
+        public List<String> getOutput() {
+            return output;
+        }
+
+        /**
+         * Returns true if the worker was killed because the command exceeded its timeout.
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+    }
+
+    private class Worker {
+        private Process process;
+        private BufferedWriter stdin;
+        private BufferedReader stdout;
+        private int commands;
+        private volatile long lastUsed;
+
+        private void start() throws IOException, InterruptedException {
+            ProcessBuilder pb = new ProcessBuilder(gmPath, "batch", "-echo", "off", "-feedback", "on", "-pass", PASS_MARKER, "-fail", FAIL_MARKER,
+                    "-escape", "unix", "-");
+            pb.redirectErrorStream(true);
+            process = pb.start();
+            stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            // health check, a process that hangs already here is killed as well
+            if (!run(Arrays.asList("version"), HEALTH_CHECK_TIMEOUT_MILLIS).isSuccess()) {
+                stop();
+                throw new IOException("gm batch process did not respond as expected.");
+            }
+            commands = 0;
+        }
+
+        /**
+         * Sends a command to the process and waits for its result. The output is read in the background, so waiting can time out and be
+         * interrupted; in both cases the process is killed, as the next command would otherwise read the output of this one.
+         */
+        private Result run(List<String> params, long timeoutMillis) throws IOException, InterruptedException {
+            StringBuilder commandLine = new StringBuilder();
+            for (String param : params) {
+                if (commandLine.length() > 0) {
+                    commandLine.append(' ');
+                }
+                commandLine.append(quote(param));
+            }
+            commands++;
+            stdin.write(commandLine.toString());
+            stdin.newLine();
+            stdin.flush();
+            Future<Result> pending = CommandRunner.readOutput(this::readResult);
+            try {
+                return timeoutMillis > 0 ? pending.get(timeoutMillis, TimeUnit.MILLISECONDS) : pending.get();
+            } catch (TimeoutException e) {
+                log.warn("Killing gm batch process after {} ms", timeoutMillis);
+                CommandRunner.killProcessTree(process);
+                return new Result(false, Collections.emptyList(), true);
+            } catch (InterruptedException e) {
+                CommandRunner.killProcessTree(process);
+                throw e;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        private Result readResult() throws IOException {
+            List<String> output = new ArrayList<>();
+            String line;
+            while ((line = stdout.readLine()) != null) {
+                // output without a trailing newline (e.g. identify -format) ends up on the same line as the marker
+                if (line.endsWith(PASS_MARKER) || line.endsWith(FAIL_MARKER)) {
+                    boolean success = line.endsWith(PASS_MARKER);
+                    String rest = line.substring(0, line.length() - (success ? PASS_MARKER : FAIL_MARKER).length());
+                    if (!rest.isEmpty()) {
+                        output.add(rest);
+                    }
+                    return new Result(success, output);
+                }
+                output.add(line);
+            }
+            throw new IOException("gm batch process terminated unexpectedly. Output was: " + output);
+        }
+
+        private void stop() {
+            if (process == null) {
+                return;
+            }
+            try {
+                stdin.close();
+            } catch (IOException e) {
+                // the process is going away anyway
+            }
+            process.destroy();
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Image operations using the external GraphicsMagick, ImageMagick and exiftool binaries. If a {@link GmBatchPool} is given, the gm commands are
+ * sent to long-lived gm batch processes instead of starting a new process for each of them. exiftool is only used to reset the orientation of
+ * images the {@link OrientationNormalizer} cannot patch in place.
+ *
+ * With a memory budget, the pixel cache of gm and convert is limited to the budget, so very large images are cached on disk instead of filling
+ * up the memory, and JPEG images are decoded at a reduced scale that is still at least twice the target size.
+ *
+ * With a command timeout, every command is killed with all its child processes when it runs longer than the timeout plus the time per
+ * megabyte of its input image. Killed commands fail with a retryable {@link ImageProcessingException}.
+ */
+public class GraphicsMagickBackend implements ImageProcessingBackend {
+
+    private String gmPath;
+    private String convertPath;
+    private String exifPath;
+    private GmBatchPool batchPool;
+    private long memoryBudget;
+    private StageMetrics stageMetrics;
+    private long commandTimeout;
+    private long commandTimeoutPerMegabyte;
+
+    public GraphicsMagickBackend(String gmPath, String convertPath, String exifPath) {
+        this(gmPath, convertPath, exifPath, null, 0);
+    }
+
+    /**
+     * @param batchPool the pool to run gm commands in, or null to start a new process for each command. The pool is not closed by the backend,
+     *            as it is shared with other runs
+     * @param memoryBudget the memory in bytes gm and convert may use for the pixels of an image, or 0 for no limit
+     */
+    public GraphicsMagickBackend(String gmPath, String convertPath, String exifPath, GmBatchPool batchPool, long memoryBudget) {
+        this.gmPath = gmPath;
+        this.convertPath = convertPath;
+        this.exifPath = exifPath;
+        this.batchPool = batchPool;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sets the time after which a command is killed. The timeout of a command is the base timeout plus the time per megabyte of the image it
+     * reads.
+     *
+     * @param commandTimeout the base timeout in milliseconds, or 0 for no timeout
+     * @param commandTimeoutPerMegabyte the additional time in milliseconds per megabyte of the input image
+     */
+    public void setCommandTimeout(long commandTimeout, long commandTimeoutPerMegabyte) {
+        this.commandTimeout = commandTimeout;
+        this.commandTimeoutPerMegabyte = commandTimeoutPerMegabyte;
+    }
+
+    /**
+     * Sets the metrics to record the orientation reset in, which is part of the resize operation: the in-place patch as stage "orientation",
+     * the exiftool calls for other formats as stage "exiftool".
+     */
+    public void setStageMetrics(StageMetrics stageMetrics) {
+        this.stageMetrics = stageMetrics;
+    }
+
+    @Override
+    public int[] getImageDimensions(Path image) throws ImageProcessingException, InterruptedException {
+        List<String> params = Arrays.asList("identify", "-ping", "-format", "%w %h", image.toAbsolutePath().toString());
+        List<String> stdOut = runGm(params, null, "Error watermarking image. Process output was:\n");
+        if (stdOut.isEmpty()) {
+            throw new ImageProcessingException("Error watermarking image: Unexpected output from identify.");
+        }
+        String[] split = stdOut.get(0).trim().split(" ");
+        try {
+            return Arrays.stream(split).mapToInt(Integer::parseInt).toArray();
+        } catch (NumberFormatException e) {
+            throw new ImageProcessingException("Error watermarking image: Unexpected output from identify.", e);
+        }
+    }
+
+    @Override
+    public void resize(Path source, Path target, int size) throws ImageProcessingException, InterruptedException {
+        String outputAbsolutePath = target.toAbsolutePath().toString();
+        List<String> params = new ArrayList<>();
+        params.add("convert");
+        addLargeImageOptions(params, source, size, false);
+        params.addAll(Arrays.asList("-auto-orient", source.toAbsolutePath().toString(), "-resize", String.format("%dx%d>", size, size),
+                outputAbsolutePath));
+        runGm(params, source, "Error converting image. Command output:\n");
+        //make sure the orientation tag is neutral, so the image is displayed in a sane way
+        long start = System.nanoTime();
+        if (normalizeOrientation(target)) {
+            if (stageMetrics != null) {
+                stageMetrics.record("orientation", start, 0, 0);
+            }
+            return;
+        }
+        run(exifPath, Arrays.asList("-Orientation=", outputAbsolutePath, "-overwrite_original"), target, "Error converting image. Command output:\n");
+        if (stageMetrics != null) {
+            stageMetrics.record("exiftool", start, 0, 0);
+        }
+    }
+
+    /**
+     * Patches the orientation tag in place, without starting exiftool.
+     *
+     * @return false if the format is not supported and exiftool has to be used
+     */
+    private static boolean normalizeOrientation(Path image) throws ImageProcessingException {
+        try {
+            return OrientationNormalizer.normalize(image);
+        } catch (IOException e) {
+            throw new ImageProcessingException("Error resetting the orientation of " + image.getFileName(), e);
+        }
+    }
+
+    @Override
+    public void scale(Path source, Path target, int percent) throws ImageProcessingException, InterruptedException {
+        runGm(Arrays.asList("convert", source.toAbsolutePath().toString(), "-resize", Integer.toString(percent) + "%",
+                target.toAbsolutePath().toString()), source, "Error watermarking image. Process output was:\n");
+    }
+
+    @Override
+    public void composite(Path canvas, Path watermark, WatermarkDescription wd) throws ImageProcessingException, InterruptedException {
+        //gm composite -dissolve 50% -geometry +550+400 -gravity southeast WATERMARK_FILE.png canvas.tif result.tif
+        List<String> params = Arrays.asList("composite", "-dissolve", "50%", "-geometry",
+                String.format("+%d+%d", wd.getXDistance(), wd.getYDistance()), "-gravity",
+                wd.getLocation(), watermark.toAbsolutePath().toString(), canvas.toAbsolutePath().toString(),
+                canvas.toAbsolutePath().toString());
+        runGm(params, canvas, "Error watermarking image. Process output was:\n");
+    }
+
+    @Override
+    public void renderText(WatermarkDescription wd, Path target) throws ImageProcessingException, InterruptedException {
+        // command to create watermark-file when text:
+        //convert -size 450x200 -background none -font Arial -fill white -gravity center caption:"Goobi.io" -shade 240x40 WATERMARK_FILE.png
+        run(convertPath, Arrays.asList("-size", wd.getBoxSize(), "-background", "none", "-font", wd.getFont(),
+                "-fill", "white", "-gravity", "center", "caption:" + wd.getText(),
+                "-shade", wd.getShadeSize(), target.toAbsolutePath().toString()), null, "Error creating watermark image from text:\n");
+    }
+
+    /**
+     * The fused pipeline and pyramidal TIFFs use ImageMagick, because gm convert supports neither image stacks nor the dissolve composite
+     * operator nor tiled TIFF output. ImageMagick is an additional dependency then, which is checked here.
+     */
+    @Override
+    public void checkFeatures(boolean fusedPipeline, boolean pyramidTiff) throws ImageProcessingException {
+        if ((fusedPipeline || pyramidTiff) && !isExecutable(convertPath)) {
+            throw new ImageProcessingException("ImageMagick was not found at " + convertPath + ", but it is needed for "
+                    + (fusedPipeline ? "the fused pipeline" : "pyramidal TIFFs") + ". Install ImageMagick and configure convertPath"
+                    + (fusedPipeline ? ", or disable fusedPipeline." : "."));
+        }
+    }
+
+    /**
+     * In large image mode the pixel cache of gm and convert is limited to the memory budget, and JPEG images are decoded at the smallest scale
+     * of 1/2, 1/4 or 1/8 that is still at least as large as the size hint of {@link #addLargeImageOptions}.
+     */
+    @Override
+    public long estimateMemory(Path source, int width, int height, int size) {
+        if (memoryBudget <= 0) {
+            return ImageProcessingBackend.super.estimateMemory(source, width, height, size);
+        }
+        int scale = 1;
+        if ("jpeg".equals(JavaImageBackend.getFormatName(source))) {
+            while (scale < 8 && width / (2 * scale) >= 2 * size && height / (2 * scale) >= 2 * size) {
+                scale *= 2;
+            }
+        }
+        long decodedPixels = (long) ((width + scale - 1) / scale) * ((height + scale - 1) / scale);
+        return Math.min(decodedPixels * ImageProcessingScheduler.ESTIMATED_BYTES_PER_PIXEL, memoryBudget);
+    }
+
+    /**
+     * Checks if a program exists, either at the given path or, for a plain program name, in one of the folders of the PATH.
+     */
+    private static boolean isExecutable(String program) {
+        if (program.contains(File.separator)) {
+            return Files.isExecutable(Paths.get(program));
+        }
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return false;
+        }
+        for (String folder : path.split(File.pathSeparator)) {
+            if (!folder.isEmpty() && Files.isExecutable(Paths.get(folder, program))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Uses a single ImageMagick call, so the source is decoded once, all watermarks are composited onto the resized canvas and the result is
+     * encoded once with a neutral orientation. No exiftool run and no in-place re-encoding is needed.
+     */
+    @Override
+    public void resizeAndWatermark(Path source, Path target, int size, List<WatermarkDescription> watermarkDescriptions,
+            List<int[]> watermarkDimensions) throws ImageProcessingException, InterruptedException {
+        //convert SOURCE -auto-orient -resize 1500x1500> ( WATERMARK_FILE.png -resize 80% ) -gravity southeast -geometry +100+100
+        //        -compose dissolve -define compose:args=50 -composite -orient top-left RESULT
+        List<String> params = new ArrayList<>();
+        addLargeImageOptions(params, source, size, true);
+        params.add(source.toAbsolutePath().toString());
+        params.add("-auto-orient");
+        params.add("-resize");
+        params.add(String.format("%dx%d>", size, size));
+        if (!watermarkDescriptions.isEmpty()) {
+            int[] canvasDimensions = getResizedDimensions(source, size);
+            for (int i = 0; i < watermarkDescriptions.size(); i++) {
+                WatermarkDescription wd = watermarkDescriptions.get(i);
+                params.add("(");
+                params.add(wd.getImagePath().toAbsolutePath().toString());
+                int scaleFactor = ImageResizeAndWatermarkPlugin.getWatermarkScaleFactor(canvasDimensions, watermarkDimensions.get(i));
+                if (scaleFactor < 100) {
+                    params.add("-resize");
+                    params.add(scaleFactor + "%");
+                }
+                params.add(")");
+                params.addAll(Arrays.asList("-gravity", wd.getLocation(), "-geometry", String.format("+%d+%d", wd.getXDistance(), wd.getYDistance()),
+                        "-compose", "dissolve", "-define", "compose:args=50", "-composite"));
+            }
+        }
+        //make sure the orientation tag is neutral, so the image is displayed in a sane way
+        params.add("-orient");
+        params.add("top-left");
+        params.add(target.toAbsolutePath().toString());
+        run(convertPath, params, source, "Error converting image. Command output:\n");
+    }
+
+    /**
+     * Creates all derivatives with a single ImageMagick call. Every derivative is written from a clone of the current image, so the watermarks
+     * only end up in that derivative:
+     *
+     * <pre>
+     * convert SOURCE -auto-orient -resize 1500x1500> ( +clone ( WATERMARK -resize 80% ) ... -composite -orient top-left -write T1 +delete )
+     *         -resize 800x800> ( +clone -orient top-left -write T2 +delete ) null:
+     * </pre>
+     *
+     * Pyramidal TIFF derivatives are written with "-compress C -define tiff:tile-geometry=256x256 -write PTIF:T". These settings are not scoped
+     * by the parentheses, so they are reset for the derivatives after them.
+     */
+    @Override
+    public void resizeCascade(Path source, List<Derivative> derivatives, List<WatermarkDescription> watermarkDescriptions,
+            List<int[]> watermarkDimensions) throws ImageProcessingException, InterruptedException {
+        List<String> params = new ArrayList<>();
+        addLargeImageOptions(params, source, derivatives.get(0).getSize(), true);
+        params.add(source.toAbsolutePath().toString());
+        params.add("-auto-orient");
+        int[] canvasDimensions = null;
+        boolean encodingChanged = false;
+        for (Derivative derivative : derivatives) {
+            params.add("-resize");
+            params.add(String.format("%dx%d>", derivative.getSize(), derivative.getSize()));
+            params.add("(");
+            params.add("+clone");
+            if (derivative.isWatermark() && !watermarkDescriptions.isEmpty()) {
+                canvasDimensions = canvasDimensions == null ? getResizedDimensions(source, derivative.getSize())
+                        : ImageResizeAndWatermarkPlugin.calculateResizedDimensions(canvasDimensions[0], canvasDimensions[1], null,
+                                derivative.getSize());
+                for (int i = 0; i < watermarkDescriptions.size(); i++) {
+                    WatermarkDescription wd = watermarkDescriptions.get(i);
+                    params.add("(");
+                    params.add(wd.getImagePath().toAbsolutePath().toString());
+                    int scaleFactor = ImageResizeAndWatermarkPlugin.getWatermarkScaleFactor(canvasDimensions, watermarkDimensions.get(i));
+                    if (scaleFactor < 100) {
+                        params.add("-resize");
+                        params.add(scaleFactor + "%");
+                    }
+                    params.add(")");
+                    params.addAll(Arrays.asList("-gravity", wd.getLocation(), "-geometry",
+                            String.format("+%d+%d", wd.getXDistance(), wd.getYDistance()), "-compose", "dissolve", "-define", "compose:args=50",
+                            "-composite"));
+                }
+            } else if (canvasDimensions != null) {
+                canvasDimensions = ImageResizeAndWatermarkPlugin.calculateResizedDimensions(canvasDimensions[0], canvasDimensions[1], null,
+                        derivative.getSize());
+            }
+            params.addAll(Arrays.asList("-orient", "top-left"));
+            String target = derivative.getTarget().toAbsolutePath().toString();
+            if (derivative.getPyramidTiff() != null) {
+                addPyramidTiffOptions(params, derivative.getPyramidTiff());
+                target = "PTIF:" + target;
+                encodingChanged = true;
+            } else if (encodingChanged) {
+                params.addAll(Arrays.asList("+compress", "+quality", "+define", "tiff:tile-geometry"));
+                encodingChanged = false;
+            }
+            params.addAll(Arrays.asList("-write", target, "+delete", ")"));
+        }
+        params.add("null:");
+        run(convertPath, params, source, "Error converting image. Command output:\n");
+    }
+
+    /**
+     * Uses ImageMagick, because its PTIF writer creates the reduced-resolution pages and takes the tile size as a define.
+     */
+    @Override
+    public void encodePyramidTiff(Path source, Path target, PyramidTiff pyramidTiff) throws ImageProcessingException, InterruptedException {
+        //convert SOURCE -compress JPEG -quality 85 -define tiff:tile-geometry=256x256 PTIF:TARGET
+        List<String> params = new ArrayList<>();
+        params.add(source.toAbsolutePath().toString());
+        addPyramidTiffOptions(params, pyramidTiff);
+        params.add("PTIF:" + target.toAbsolutePath().toString());
+        run(convertPath, params, source, "Error converting image. Command output:\n");
+    }
+
+    private static void addPyramidTiffOptions(List<String> params, PyramidTiff pyramidTiff) {
+        params.add("-compress");
+        switch (pyramidTiff.getCompression()) {
+            case "deflate":
+                params.add("Zip");
+                break;
+            case "jpeg":
+                params.add("JPEG");
+                params.add("-quality");
+                params.add(Integer.toString(pyramidTiff.getQuality()));
+                break;
+            case "lzw":
+                params.add("LZW");
+                break;
+            default:
+                params.add("None");
+        }
+        params.add("-define");
+        params.add(String.format("tiff:tile-geometry=%dx%d", pyramidTiff.getTileSize(), pyramidTiff.getTileSize()));
+    }
+
+    /**
+     * Adds the options that limit the memory used for large images. GraphicsMagick takes the JPEG scale hint as "-size WxH", ImageMagick as
+     * "-define jpeg:size=WxH".
+     */
+    private void addLargeImageOptions(List<String> params, Path source, int size, boolean imageMagick) {
+        if (memoryBudget <= 0) {
+            return;
+        }
+        params.addAll(Arrays.asList("-limit", "memory", Long.toString(memoryBudget), "-limit", "map", Long.toString(2 * memoryBudget)));
+        if ("jpeg".equals(JavaImageBackend.getFormatName(source))) {
+            // libjpeg can scale down while decoding, twice the target size keeps enough detail for the final resize
+            String jpegSize = String.format("%dx%d", 2 * size, 2 * size);
+            if (imageMagick) {
+                params.addAll(Arrays.asList("-define", "jpeg:size=" + jpegSize));
+            } else {
+                params.addAll(Arrays.asList("-size", jpegSize));
+            }
+        }
+    }
+
+    /**
+     * Determines the dimensions the image will have after auto-orienting and resizing it, without decoding the pixel data. The image header is
+     * read directly if possible, otherwise ImageMagick is used.
+     */
+    private int[] getResizedDimensions(Path source, int size) throws ImageProcessingException, InterruptedException {
+        try {
+            int[] header = ImageHeaderReader.read(source);
+            if (header != null) {
+                return ImageResizeAndWatermarkPlugin.calculateResizedDimensions(header[0], header[1],
+                        ImageHeaderReader.getOrientationName(header[2]), size);
+            }
+        } catch (IOException e) {
+            throw new ImageProcessingException("Error reading image dimensions of " + source.getFileName(), e);
+        }
+        // unknown format, ask ImageMagick
+        List<String> params = Arrays.asList("-ping", source.toAbsolutePath().toString() + "[0]", "-format", "%w %h %[orientation]", "info:");
+        List<String> stdOut = run(convertPath, params, null, "Error watermarking image. Process output was:\n");
+        if (stdOut.isEmpty()) {
+            throw new ImageProcessingException("Error watermarking image: Unexpected output from identify.");
+        }
+        String[] split = stdOut.get(0).trim().split(" ");
+        try {
+            int width = Integer.parseInt(split[0]);
+            int height = Integer.parseInt(split[1]);
+            String orientation = split.length > 2 ? split[2] : "";
+            return ImageResizeAndWatermarkPlugin.calculateResizedDimensions(width, height, orientation, size);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new ImageProcessingException("Error watermarking image: Unexpected output from identify.", e);
+        }
+    }
+
+    /**
+     * Runs a gm command, either in one of the batch processes or as a new process.
+     *
+     * @param input the image the command reads, for the timeout, or null if its size does not matter
+     */
+    private List<String> runGm(List<String> params, Path input, String errorMessage) throws ImageProcessingException, InterruptedException {
+        if (batchPool == null) {
+            return run(gmPath, params, input, errorMessage);
+        }
+        long timeout = getTimeout(input);
+        try {
+            GmBatchPool.Result result = batchPool.run(params, timeout);
+            if (result.isTimedOut()) {
+                throw new ImageProcessingException(errorMessage + "gm was killed after " + timeout + " ms.", true);
+            }
+            if (!result.isSuccess()) {
+                throw new ImageProcessingException(errorMessage + String.join("\n", result.getOutput()));
+            }
+            List<String> stdOut = new ArrayList<>();
+            for (String line : result.getOutput()) {
+                if (!line.trim().isEmpty()) {
+                    stdOut.add(line);
+                }
+            }
+            return stdOut;
+        } catch (IOException e) {
+            // the batch process died, a fresh one may succeed
+            throw new ImageProcessingException(errorMessage.trim(), e, true);
+        }
+    }
+
+    private List<String> run(String executable, List<String> params, Path input, String errorMessage)
+            throws ImageProcessingException, InterruptedException {
+        List<String> command = new ArrayList<>(params.size() + 1);
+        command.add(executable);
+        command.addAll(params);
+        long timeout = getTimeout(input);
+        CommandRunner.Result result;
+        try {
+            result = CommandRunner.run(command, timeout);
+        } catch (IOException e) {
+            throw new ImageProcessingException(errorMessage.trim(), e, true);
+        }
+        if (result.isTimedOut()) {
+            throw new ImageProcessingException(errorMessage + executable + " was killed after " + timeout + " ms.", true);
+        }
+        if (result.getExitCode() != 0) {
+            throw new ImageProcessingException(errorMessage + result.getStdErr(), result.isKilled());
+        }
+        return result.getStdOut();
+    }
+
+    private long getTimeout(Path input) {
+        if (commandTimeout <= 0) {
+            return 0;
+        }
+        long megabytes = 0;
+        if (input != null) {
+            try {
+                megabytes = Files.size(input) / (1024 * 1024);
+            } catch (IOException e) {
+                // the command will report the missing file
+            }
+        }
+        return commandTimeout + megabytes * commandTimeoutPerMegabyte;
+    }
+
+}
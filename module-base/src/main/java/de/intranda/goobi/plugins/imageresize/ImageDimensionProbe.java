@@ -0,0 +1,71 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Determines image dimensions by reading the image header with {@link ImageHeaderReader}. Only if the format is unknown, the image processing
+ * backend is asked. Results are cached by path, size and modification time, so repeated lookups during a run cost nothing.
+ */
+public class ImageDimensionProbe {
+
+    private static final int MAX_ENTRIES = 10000;
+
+    private final ImageProcessingBackend fallback;
+    private final Map<Path, CachedDimensions> cache = new ConcurrentHashMap<>();
+
+    public ImageDimensionProbe(ImageProcessingBackend fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * Returns width and height of an image.
+     */
+    public int[] getImageDimensions(Path image) throws ImageProcessingException, InterruptedException {
+        Path key = image.toAbsolutePath();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new ImageProcessingException("Error reading image dimensions of " + image.getFileName(), e);
+        }
+        long modified = attributes.lastModifiedTime().toMillis();
+        CachedDimensions cached = cache.get(key);
+        if (cached != null && cached.modified == modified && cached.size == attributes.size()) {
+            return cached.dimensions.clone();
+        }
+        int[] dimensions = null;
+        try {
+            int[] header = ImageHeaderReader.read(key);
+            if (header != null) {
+                dimensions = new int[] { header[0], header[1] };
+            }
+        } catch (IOException e) {
+            throw new ImageProcessingException("Error reading image dimensions of " + image.getFileName(), e);
+        }
+        if (dimensions == null) {
+            dimensions = fallback.getImageDimensions(image);
+        }
+        if (cache.size() >= MAX_ENTRIES) {
+            cache.clear();
+        }
+        cache.put(key, new CachedDimensions(modified, attributes.size(), dimensions.clone()));
+        return dimensions;
+    }
+
+    private static class CachedDimensions {
+        private final long modified;
+        private final long size;
+        private final int[] dimensions;
+
+        private CachedDimensions(long modified, long size, int[] dimensions) {
+            this.modified = modified;
+            this.size = size;
+            this.dimensions = dimensions;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads width, height and orientation of an image from its header, without decoding any pixel data and without starting an external process.
+ * Only a few small blocks of the file are read. Supported are TIFF and BigTIFF (first IFD), JPEG (SOF and EXIF segments), PNG (IHDR chunk) and
+ * JPEG 2000 (JP2 image header box or SIZ marker of a raw codestream).
+ */
+public class ImageHeaderReader {
+
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_ORIENTATION = 274;
+    private static final int HEADER_WINDOW = 64 * 1024;
+
+    private static final String[] ORIENTATION_NAMES =
+            { "Undefined", "TopLeft", "TopRight", "BottomRight", "BottomLeft", "LeftTop", "RightTop", "RightBottom", "LeftBottom" };
+
+    private ImageHeaderReader() {
+    }
+
+    /**
+     * Reads width, height and orientation from the header of an image.
+     *
+     * @return an array containing width, height and the TIFF/EXIF orientation (1 if there is none), or null if the format is not supported or
+     *         the header could not be parsed
+     */
+    public static int[] read(Path image) throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            ByteBuffer start = read(channel, 0, 16, ByteOrder.BIG_ENDIAN);
+            if (start.limit() < 12) {
+                return null;
+            }
+            int b0 = start.get(0) & 0xff;
+            int b1 = start.get(1) & 0xff;
+            if ((b0 == 'I' && b1 == 'I') || (b0 == 'M' && b1 == 'M')) {
+                return readTiff(channel, b0 == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            } else if (b0 == 0xff && b1 == 0xd8) {
+                return readJpeg(channel);
+            } else if (b0 == 0x89 && b1 == 'P' && start.get(2) == 'N' && start.get(3) == 'G') {
+                ByteBuffer ihdr = read(channel, 16, 8, ByteOrder.BIG_ENDIAN);
+                return ihdr.limit() < 8 ? null : new int[] { ihdr.getInt(0), ihdr.getInt(4), 1 };
+            } else if (start.getInt(0) == 12 && start.getInt(4) == 0x6a502020) {
+                return readJp2Boxes(channel, 0, channel.size());
+            } else if (b0 == 0xff && b1 == 0x4f && (start.get(2) & 0xff) == 0xff && (start.get(3) & 0xff) == 0x51) {
+                return readCodestream(channel, 0);
+            }
+            return null;
+        } catch (RuntimeException e) {
+            // truncated or broken header
+            return null;
+        }
+    }
+
+    /**
+     * Converts a TIFF/EXIF orientation value into the name ImageMagick uses for it.
+     */
+    public static String getOrientationName(int orientation) {
+        return orientation > 0 && orientation < ORIENTATION_NAMES.length ? ORIENTATION_NAMES[orientation] : ORIENTATION_NAMES[0];
+    }
+
+    private static int[] readTiff(FileChannel channel, ByteOrder order) throws IOException {
+        ByteBuffer header = read(channel, 0, 16, order);
+        int version = header.getShort(2) & 0xffff;
+        boolean bigTiff = version == 43;
+        long ifdOffset = bigTiff ? header.getLong(8) : header.getInt(4) & 0xffffffffL;
+        int countSize = bigTiff ? 8 : 2;
+        int entrySize = bigTiff ? 20 : 12;
+        ByteBuffer countBuffer = read(channel, ifdOffset, countSize, order);
+        long entries = bigTiff ? countBuffer.getLong(0) : countBuffer.getShort(0) & 0xffff;
+        ByteBuffer ifd = read(channel, ifdOffset + countSize, (int) Math.min(entries * entrySize, HEADER_WINDOW), order);
+        int width = -1;
+        int height = -1;
+        int orientation = 1;
+        for (int entry = 0; entry + entrySize <= ifd.limit(); entry += entrySize) {
+            int tag = ifd.getShort(entry) & 0xffff;
+            if (tag == TAG_IMAGE_WIDTH) {
+                width = readTiffValue(ifd, entry, bigTiff);
+            } else if (tag == TAG_IMAGE_LENGTH) {
+                height = readTiffValue(ifd, entry, bigTiff);
+            } else if (tag == TAG_ORIENTATION) {
+                orientation = readTiffValue(ifd, entry, bigTiff);
+            }
+        }
+        return width > 0 && height > 0 ? new int[] { width, height, orientation } : null;
+    }
+
+    /**
+     * Reads the single SHORT, LONG or LONG8 value stored inline in an IFD entry.
+     *
+     * @return the value, or -1 if the type is not supported or a LONG8 value does not fit into an int
+     */
+    private static int readTiffValue(ByteBuffer ifd, int entry, boolean bigTiff) {
+        int type = ifd.getShort(entry + 2) & 0xffff;
+        int valueOffset = entry + (bigTiff ? 12 : 8);
+        switch (type) {
+            case 3:
+                return ifd.getShort(valueOffset) & 0xffff;
+            case 4:
+                return ifd.getInt(valueOffset);
+            case 16:
+                if (!bigTiff) {
+                    return -1;
+                }
+                long value = ifd.getLong(valueOffset);
+                return value < 0 || value > Integer.MAX_VALUE ? -1 : (int) value;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Finds the orientation entry in the first IFD of a TIFF structure, as used in the EXIF segment of JPEG files.
+     *
+     * @param tiff a buffer starting with the TIFF header
+     * @return the orientation, or 1 if there is none
+     */
+    static int readTiffOrientation(ByteBuffer tiff) {
+        if (tiff.limit() < 8) {
+            return 1;
+        }
+        tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int ifdOffset = tiff.getInt(4);
+        if (ifdOffset < 8 || ifdOffset + 2 > tiff.limit()) {
+            return 1;
+        }
+        int entries = tiff.getShort(ifdOffset) & 0xffff;
+        for (int i = 0; i < entries; i++) {
+            int entry = ifdOffset + 2 + i * 12;
+            if (entry + 12 > tiff.limit()) {
+                break;
+            }
+            if ((tiff.getShort(entry) & 0xffff) == TAG_ORIENTATION) {
+                return tiff.getShort(entry + 8) & 0xffff;
+            }
+        }
+        return 1;
+    }
+
+    private static int[] readJpeg(FileChannel channel) throws IOException {
+        long position = 2;
+        long size = channel.size();
+        int orientation = 1;
+        while (position + 4 <= size) {
+            ByteBuffer marker = read(channel, position, 4, ByteOrder.BIG_ENDIAN);
+            if ((marker.get(0) & 0xff) != 0xff) {
+                return null;
+            }
+            int type = marker.get(1) & 0xff;
+            if (type == 0xff) {
+                // fill byte
+                position++;
+                continue;
+            }
+            int length = marker.getShort(2) & 0xffff;
+            if (type == 0xe1) {
+                ByteBuffer app1 = read(channel, position + 4, length - 2, ByteOrder.BIG_ENDIAN);
+                if (app1.limit() > 6 && app1.get(0) == 'E' && app1.get(1) == 'x' && app1.get(2) == 'i' && app1.get(3) == 'f') {
+                    app1.position(6);
+                    orientation = readTiffOrientation(app1.slice());
+                }
+            } else if (type >= 0xc0 && type <= 0xcf && type != 0xc4 && type != 0xc8 && type != 0xcc) {
+                ByteBuffer sof = read(channel, position + 4, 5, ByteOrder.BIG_ENDIAN);
+                int height = sof.getShort(1) & 0xffff;
+                int width = sof.getShort(3) & 0xffff;
+                return new int[] { width, height, orientation };
+            } else if (type == 0xd9 || type == 0xda) {
+                // end of image or start of scan without a frame header
+                return null;
+            }
+            position += 2 + length;
+        }
+        return null;
+    }
+
+    /**
+     * Walks the JP2 boxes until the image header box inside the JP2 header superbox is found.
+     */
+    private static int[] readJp2Boxes(FileChannel channel, long start, long end) throws IOException {
+        long position = start;
+        while (position + 8 <= end) {
+            ByteBuffer box = read(channel, position, 16, ByteOrder.BIG_ENDIAN);
+            long length = box.getInt(0) & 0xffffffffL;
+            int type = box.getInt(4);
+            int headerLength = 8;
+            if (length == 1) {
+                length = box.getLong(8);
+                headerLength = 16;
+            } else if (length == 0) {
+                length = end - position;
+            }
+            if (type == 0x6a703268) {
+                // jp2h superbox
+                return readJp2Boxes(channel, position + headerLength, position + length);
+            } else if (type == 0x69686472) {
+                // ihdr: height, width
+                ByteBuffer ihdr = read(channel, position + headerLength, 8, ByteOrder.BIG_ENDIAN);
+                return new int[] { ihdr.getInt(4), ihdr.getInt(0), 1 };
+            } else if (type == 0x6a703263) {
+                // contiguous codestream before the header, should not happen
+                return readCodestream(channel, position + headerLength);
+            }
+            if (length < headerLength) {
+                return null;
+            }
+            position += length;
+        }
+        return null;
+    }
+
+    private static int[] readCodestream(FileChannel channel, long start) throws IOException {
+        // SOC marker, SIZ marker, Lsiz, Rsiz, Xsiz, Ysiz, XOsiz, YOsiz
+        ByteBuffer siz = read(channel, start, 24, ByteOrder.BIG_ENDIAN);
+        if ((siz.getShort(2) & 0xffff) != 0xff51) {
+            return null;
+        }
+        int width = siz.getInt(8) - siz.getInt(16);
+        int height = siz.getInt(12) - siz.getInt(20);
+        return new int[] { width, height, 1 };
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length, ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, length));
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        buffer.order(order);
+        return buffer;
+    }
+}
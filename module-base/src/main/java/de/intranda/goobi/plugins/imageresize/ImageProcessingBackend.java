@@ -0,0 +1,144 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The image operations needed by the plugin. Implementations either call external tools like GraphicsMagick or do the work inside the JVM.
+ */
+public interface ImageProcessingBackend extends AutoCloseable {
+
+    /**
+     * Reads width and height of an image without decoding the pixel data, if possible.
+     * 
+     * @param image the image to read
+     * @return an array containing width and height
+     */
+    int[] getImageDimensions(Path image) throws ImageProcessingException, InterruptedException;
+
+    /**
+     * Auto-orients the source image, scales it down so that the longest side is at most size pixels and writes it to target without an
+     * orientation tag.
+     */
+    void resize(Path source, Path target, int size) throws ImageProcessingException, InterruptedException;
+
+    /**
+     * Scales an image by the given percentage and writes it to target.
+     */
+    void scale(Path source, Path target, int percent) throws ImageProcessingException, InterruptedException;
+
+    /**
+     * Renders a watermark image into the canvas image. The canvas image is overwritten.
+     */
+    void composite(Path canvas, Path watermark, WatermarkDescription watermarkDescription) throws ImageProcessingException, InterruptedException;
+
+    /**
+     * Renders the text of a text watermark into a transparent PNG image.
+     */
+    void renderText(WatermarkDescription watermarkDescription, Path target) throws ImageProcessingException, InterruptedException;
+
+    /**
+     * Resizes an image and renders all watermarks into it, decoding and encoding the image only once.
+     * 
+     * @param watermarkDimensions the dimensions of the watermark images, in the same order as the watermark descriptions
+     */
+    void resizeAndWatermark(Path source, Path target, int size, List<WatermarkDescription> watermarkDescriptions, List<int[]> watermarkDimensions)
+            throws ImageProcessingException, InterruptedException;
+
+    /**
+     * Creates several derivatives of an image from a single decode. The source is resized to the first derivative, every further derivative is
+     * scaled down from the previous one, before watermarks were rendered into it. Watermarks are only rendered into the derivatives that ask
+     * for it. Derivatives with a {@link PyramidTiff} encoding are written as pyramidal TIFF directly.
+     *
+     * @param derivatives the derivatives, ordered by decreasing size
+     * @param watermarkDimensions the dimensions of the watermark images, in the same order as the watermark descriptions
+     */
+    void resizeCascade(Path source, List<Derivative> derivatives, List<WatermarkDescription> watermarkDescriptions, List<int[]> watermarkDimensions)
+            throws ImageProcessingException, InterruptedException;
+
+    /**
+     * Writes a finished image as tiled, multi-resolution TIFF.
+     */
+    void encodePyramidTiff(Path source, Path target, PyramidTiff pyramidTiff) throws ImageProcessingException, InterruptedException;
+
+    /**
+     * Checks that the programs needed for the fused pipeline, including {@link #resizeCascade}, and for pyramidal TIFFs are available, so a
+     * run fails once before its first page instead of on every page. The default implementation does nothing.
+     *
+     * @throws ImageProcessingException if a needed program is missing
+     */
+    default void checkFeatures(boolean fusedPipeline, boolean pyramidTiff) throws ImageProcessingException {
+    }
+
+    /**
+     * Estimates the memory in bytes needed to decode a source image for a derivative of the given size. The {@link ImageProcessingScheduler}
+     * uses it to decide how many pages fit into memory at the same time. The default implementation assumes the full image is decoded.
+     *
+     * @param source the source image
+     * @param width the width of the source image
+     * @param height the height of the source image
+     * @param size the longest side of the largest derivative made from the source
+     */
+    default long estimateMemory(Path source, int width, int height, int size) {
+        return (long) width * height * ImageProcessingScheduler.ESTIMATED_BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Returns a name that identifies the implementation, e.g. in cache keys of rendered watermarks.
+     */
+    default String getName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * Releases resources like long-running helper processes. The default implementation does nothing.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * One output image of {@link ImageProcessingBackend#resizeCascade}.
+     */
+    final class Derivative {
+        private final Path target;
+        private final int size;
+        private final boolean watermark;
+        private final PyramidTiff pyramidTiff;
+
+        /**
+         * @param target the file to write
+         * @param size the maximum size of the longest side
+         * @param watermark true if the watermarks are rendered into this derivative
+         */
+        public Derivative(Path target, int size, boolean watermark) {
+            this(target, size, watermark, null);
+        }
+
+        /**
+         * @param pyramidTiff the encoding of the derivative, or null to write it in the format given by the extension of the target
+         */
+        public Derivative(Path target, int size, boolean watermark, PyramidTiff pyramidTiff) {
+            this.target = target;
+            this.size = size;
+            this.watermark = watermark;
+            this.pyramidTiff = pyramidTiff;
+        }
+
+        public Path getTarget() {
+            return target;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public boolean isWatermark() {
+            return watermark;
+        }
+
+        public PyramidTiff getPyramidTiff() {
+            return pyramidTiff;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package de.intranda.goobi.plugins.imageresize;
+
+/**
+ * Signals that a single image could not be resized or watermarked. The message is meant to be written to the process journal.
+ *
+ * Failures that may go away when the page is processed again, e.g. a command that was killed after its timeout, are marked as retryable.
+ */
+public class ImageProcessingException extends Exception {
+
+    private static final long serialVersionUID = 4120961433627387236L;
+
+    private final boolean retryable;
+
+    public ImageProcessingException(String message) {
+        this(message, false);
+    }
+
+    public ImageProcessingException(String message, Throwable cause) {
+        this(message, cause, false);
+    }
+
+    public ImageProcessingException(String message, boolean retryable) {
+        super(message);
+        this.retryable = retryable;
+    }
+
+    public ImageProcessingException(String message, Throwable cause, boolean retryable) {
+        super(message, cause);
+        this.retryable = retryable;
+    }
+
+    /**
+     * Returns true if processing the page again may succeed.
+     */
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
@@ -0,0 +1,114 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * The image processing runs of all steps in this JVM, by step id, with their progress. Runs in asynchronous mode are executed here in the
+ * background, at most the configured number at the same time; further jobs wait in a queue. Synchronous runs are registered as well, so the
+ * progress of every run can be read in the same place.
+ */
+@Log4j2
+public class ImageProcessingJobs {
+
+    private static final ImageProcessingJobs INSTANCE = new ImageProcessingJobs();
+
+    private final ConcurrentMap<Integer, JobProgress> jobs = new ConcurrentHashMap<>();
+    private final AtomicInteger threadNumber = new AtomicInteger();
+    private final ThreadPoolExecutor executor;
+
+    ImageProcessingJobs() {
+        int maxJobs = Runtime.getRuntime().availableProcessors();
+        executor = new ThreadPoolExecutor(maxJobs, maxJobs, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "imageresize-job-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static ImageProcessingJobs getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the number of background jobs running at the same time. Called at the start of every run, so changes of the configuration take
+     * effect without a restart.
+     */
+    public synchronized void configure(int maxJobs) {
+        int jobs = Math.max(1, maxJobs);
+        if (jobs > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(jobs);
+            executor.setCorePoolSize(jobs);
+        } else if (jobs < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(jobs);
+            executor.setMaximumPoolSize(jobs);
+        }
+    }
+
+    /**
+     * Runs a job in the background, unless a job for the step is already queued or running.
+     *
+     * @return true if the job was submitted, false if there already is a job for the step
+     */
+    public boolean submit(int processId, int stepId, Runnable job) {
+        JobProgress progress = new JobProgress(processId, stepId);
+        if (jobs.putIfAbsent(stepId, progress) != null) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    job.run();
+                } catch (RuntimeException e) {
+                    log.error("Background image processing of step {} failed", stepId, e);
+                } finally {
+                    jobs.remove(stepId, progress);
+                }
+            });
+        } catch (RuntimeException e) {
+            jobs.remove(stepId, progress);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Marks the run of a step as started. Returns the progress of the queued job of the step, or registers a new one for a synchronous run.
+     * The progress has to be passed to {@link #finish(JobProgress)} when the run is over.
+     */
+    public JobProgress start(int processId, int stepId) {
+        JobProgress progress = jobs.computeIfAbsent(stepId, id -> new JobProgress(processId, stepId));
+        progress.start();
+        return progress;
+    }
+
+    /**
+     * Removes a finished run.
+     */
+    public void finish(JobProgress progress) {
+        jobs.remove(progress.getStepId(), progress);
+    }
+
+    /**
+     * Returns the progress of the run of a step, or null if no run of the step is queued or running.
+     */
+    public JobProgress getProgress(int stepId) {
+        return jobs.get(stepId);
+    }
+
+    /**
+     * Returns the progress of all queued and running jobs.
+     */
+    public List<JobProgress> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+}
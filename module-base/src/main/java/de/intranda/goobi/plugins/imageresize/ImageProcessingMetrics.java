@@ -0,0 +1,130 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * The metrics of all runs in this JVM, registered as MBean "de.intranda.goobi.plugins.imageresize:type=ImageProcessingMetrics", so they can be
+ * read by JConsole or collected by a JMX exporter.
+ */
+@Log4j2
+public class ImageProcessingMetrics implements ImageProcessingMetricsMXBean {
+
+    public static final String OBJECT_NAME = "de.intranda.goobi.plugins.imageresize:type=ImageProcessingMetrics";
+
+    private static final ImageProcessingMetrics INSTANCE = new ImageProcessingMetrics();
+
+    private final StageMetrics stageMetrics = new StageMetrics(StageMetrics.MAX_SAMPLES, null);
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong pixels = new AtomicLong();
+
+    static {
+        register();
+    }
+
+    private ImageProcessingMetrics() {
+    }
+
+    public static ImageProcessingMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            try {
+                server.registerMBean(INSTANCE, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // the plugin was loaded again by a new class loader, replace the MBean of the old one
+                server.unregisterMBean(name);
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (JMException | RuntimeException e) {
+            log.warn("could not register MBean {}: {}", OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the metrics that every run passes its measurements to.
+     */
+    public StageMetrics getStageMetrics() {
+        return stageMetrics;
+    }
+
+    /**
+     * Adds the pages and pixels of a finished run.
+     */
+    public void addRun(long pageCount, long pixelCount) {
+        runs.incrementAndGet();
+        pages.addAndGet(pageCount);
+        pixels.addAndGet(pixelCount);
+    }
+
+    @Override
+    public long getRuns() {
+        return runs.get();
+    }
+
+    @Override
+    public long getPages() {
+        return pages.get();
+    }
+
+    @Override
+    public long getMegapixels() {
+        return pixels.get() / 1000000;
+    }
+
+    @Override
+    public List<StageStatistics> getStages() {
+        return stageMetrics.getStatistics();
+    }
+
+    @Override
+    public int getSchedulerLimit() {
+        return ImageProcessingScheduler.getInstance().getCurrentLimit();
+    }
+
+    @Override
+    public int getSchedulerRunning() {
+        return ImageProcessingScheduler.getInstance().getRunning();
+    }
+
+    @Override
+    public int getSchedulerWaiting() {
+        return ImageProcessingScheduler.getInstance().getWaiting();
+    }
+
+    @Override
+    public long getSchedulerMemoryInUse() {
+        return ImageProcessingScheduler.getInstance().getMemoryInUse() / (1024 * 1024);
+    }
+
+    @Override
+    public List<String> getJobs() {
+        List<String> jobs = new ArrayList<>();
+        for (JobProgress progress : ImageProcessingJobs.getInstance().getJobs()) {
+            jobs.add(progress.toString());
+        }
+        return jobs;
+    }
+
+    @Override
+    public void reset() {
+        stageMetrics.reset();
+        runs.set(0);
+        pages.set(0);
+        pixels.set(0);
+    }
+}
@@ -0,0 +1,56 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.util.List;
+
+/**
+ * The JMX view of the image processing of all runs since the plugin was loaded.
+ */
+public interface ImageProcessingMetricsMXBean {
+
+    /**
+     * The number of finished runs.
+     */
+    long getRuns();
+
+    /**
+     * The number of processed pages.
+     */
+    long getPages();
+
+    /**
+     * The number of processed megapixels of the source images.
+     */
+    long getMegapixels();
+
+    /**
+     * The statistics of every processing stage.
+     */
+    List<StageStatistics> getStages();
+
+    /**
+     * The current concurrency limit of the scheduler for all steps.
+     */
+    int getSchedulerLimit();
+
+    /**
+     * The number of pages being processed.
+     */
+    int getSchedulerRunning();
+
+    /**
+     * The number of pages waiting for admission.
+     */
+    int getSchedulerWaiting();
+
+    /**
+     * The estimated memory of the pages being processed, in MB.
+     */
+    long getSchedulerMemoryInUse();
+
+    /**
+     * The progress of all queued and running steps, one line per step.
+     */
+    List<String> getJobs();
+
+    void reset();
+}
@@ -0,0 +1,311 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admits the pages of all steps running in this JVM to image processing, so that dozens of concurrent steps do not start more gm processes
+ * than the machine can handle. A page is admitted if fewer pages than the concurrency limit are being processed and the estimated memory of
+ * all running pages stays below the memory limit. A page that exceeds the memory limit on its own is admitted when nothing else is running.
+ *
+ * Waiting pages are admitted round-robin between their owners, usually the processes, so a huge volume cannot starve small ones. Within one
+ * owner the pages are admitted in order. If the next page of an owner does not fit into the free memory, the pages of the other owners are
+ * admitted before it. Once it has been passed over {@value #MAX_PASSED_OVER} times, no other page is admitted until it fits, so large pages
+ * are not starved by small ones either.
+ *
+ * If adaptive concurrency is enabled, the concurrency limit follows the observed processing time per pixel: it is lowered by 10% when the
+ * recent average is more than 50% above the long-term average, and raised by one per limit's worth of pages while pages are waiting and the
+ * latency is fine. The limit never exceeds the configured maximum.
+ */
+public class ImageProcessingScheduler {
+
+    /**
+     * GraphicsMagick and ImageMagick in Q16 need 8 bytes per pixel for a decoded image; the Java backend needs less, so the estimate is on the
+     * safe side.
+     */
+    public static final int ESTIMATED_BYTES_PER_PIXEL = 8;
+
+    private static final double SHORT_TERM_WEIGHT = 0.2;
+    private static final double LONG_TERM_WEIGHT = 0.02;
+    private static final double LATENCY_TOLERANCE = 1.5;
+    private static final double DECREASE_FACTOR = 0.9;
+    static final int MAX_PASSED_OVER = 16;
+
+    private static final ImageProcessingScheduler INSTANCE = new ImageProcessingScheduler();
+
+    private final Map<Object, Deque<Permit>> waitingByOwner = new HashMap<>();
+    private final Deque<Object> owners = new ArrayDeque<>();
+    private Permit starving;
+    private int maxConcurrency;
+    private long memoryLimit;
+    private boolean adaptive;
+    private double limit;
+    private int running;
+    private int waiting;
+    private long memoryInUse;
+    private double shortTermLatency;
+    private double longTermLatency;
+    private int completionsSinceChange;
+
+    ImageProcessingScheduler() {
+        configure(Runtime.getRuntime().availableProcessors(), getDefaultMemoryLimit(), true);
+    }
+
+    public static ImageProcessingScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns half of the physical memory, or 4 GB if the size of the physical memory is not known.
+     */
+    public static long getDefaultMemoryLimit() {
+        OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+        if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) operatingSystem).getTotalPhysicalMemorySize() / 2;
+        }
+        return 4096L * 1024 * 1024;
+    }
+
+    /**
+     * Sets the limits. Called at the start of every run, so changes of the configuration take effect without a restart. The adaptive limit is
+     * only reset if the maximum concurrency changes.
+     *
+     * @param maxConcurrency the maximum number of pages processed at the same time
+     * @param memoryLimit the maximum estimated memory of all pages processed at the same time, in bytes
+     * @param adaptive true if the concurrency limit should be lowered when the processing time per pixel increases
+     */
+    public synchronized void configure(int maxConcurrency, long memoryLimit, boolean adaptive) {
+        int newMaxConcurrency = Math.max(1, maxConcurrency);
+        if (newMaxConcurrency != this.maxConcurrency || !adaptive) {
+            limit = newMaxConcurrency;
+        }
+        this.maxConcurrency = newMaxConcurrency;
+        this.memoryLimit = Math.max(1, memoryLimit);
+        this.adaptive = adaptive;
+        dispatch();
+    }
+
+    /**
+     * Waits until a page may be processed, assuming that the full image is decoded.
+     *
+     * @param owner the owner of the page, e.g. the process; pages of different owners are admitted round-robin
+     * @param pixels the number of pixels of the page, used to estimate its memory
+     * @return the permit, which has to be closed when the page is finished
+     */
+    public Permit acquire(Object owner, long pixels) throws InterruptedException {
+        return acquire(owner, pixels, pixels * ESTIMATED_BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Waits until a page may be processed.
+     *
+     * @param owner the owner of the page, e.g. the process; pages of different owners are admitted round-robin
+     * @param pixels the number of pixels of the page, used to measure the processing time per pixel
+     * @param memory the estimated memory needed to process the page, in bytes, see {@link ImageProcessingBackend#estimateMemory}
+     * @return the permit, which has to be closed when the page is finished
+     */
+    public Permit acquire(Object owner, long pixels, long memory) throws InterruptedException {
+        Permit permit = new Permit(owner, pixels, memory);
+        synchronized (this) {
+            Deque<Permit> queue = waitingByOwner.get(owner);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                waitingByOwner.put(owner, queue);
+                owners.addLast(owner);
+            }
+            queue.addLast(permit);
+            waiting++;
+            dispatch();
+            try {
+                while (!permit.granted) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (permit.granted) {
+                    release(permit, false);
+                } else {
+                    removeWaiting(permit);
+                }
+                throw e;
+            }
+        }
+        return permit;
+    }
+
+    private void removeWaiting(Permit permit) {
+        Deque<Permit> queue = waitingByOwner.get(permit.owner);
+        if (queue != null && queue.remove(permit)) {
+            waiting--;
+            if (permit == starving) {
+                starving = null;
+            }
+            if (queue.isEmpty()) {
+                waitingByOwner.remove(permit.owner);
+                owners.remove(permit.owner);
+            }
+            // a large page at the head of a queue may have blocked the others
+            dispatch();
+        }
+    }
+
+    /**
+     * Admits waiting pages, one owner after the other, as long as they fit. Owners whose next page does not fit are skipped, until that page
+     * has been passed over too often.
+     */
+    private void dispatch() {
+        boolean granted = false;
+        List<Permit> passedOver = new ArrayList<>();
+        while (!owners.isEmpty()) {
+            Permit next;
+            if (starving != null) {
+                if (!fits(starving)) {
+                    break;
+                }
+                next = starving;
+                starving = null;
+            } else {
+                if (passedOver.size() == owners.size()) {
+                    // no owner has a page that fits
+                    break;
+                }
+                next = waitingByOwner.get(owners.peekFirst()).peekFirst();
+                if (!fits(next)) {
+                    owners.addLast(owners.removeFirst());
+                    passedOver.add(next);
+                    continue;
+                }
+            }
+            grant(next);
+            granted = true;
+            for (Permit permit : passedOver) {
+                permit.passedOver++;
+                if (permit.passedOver >= MAX_PASSED_OVER && starving == null) {
+                    starving = permit;
+                }
+            }
+            passedOver.clear();
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    private boolean fits(Permit permit) {
+        return running == 0 || (running < getCurrentLimit() && memoryInUse + permit.memory <= memoryLimit);
+    }
+
+    /**
+     * Admits the first page of an owner and moves the owner to the end of the round.
+     */
+    private void grant(Permit permit) {
+        Deque<Permit> queue = waitingByOwner.get(permit.owner);
+        queue.removeFirst();
+        owners.remove(permit.owner);
+        if (queue.isEmpty()) {
+            waitingByOwner.remove(permit.owner);
+        } else {
+            owners.addLast(permit.owner);
+        }
+        waiting--;
+        running++;
+        memoryInUse += permit.memory;
+        permit.granted = true;
+        permit.start = System.nanoTime();
+    }
+
+    private synchronized void release(Permit permit, boolean measure) {
+        if (permit.released) {
+            return;
+        }
+        permit.released = true;
+        boolean saturated = waiting > 0 && running >= getCurrentLimit();
+        running--;
+        memoryInUse -= permit.memory;
+        if (measure && adaptive) {
+            addSample(System.nanoTime() - permit.start, permit.pixels, saturated);
+        }
+        dispatch();
+    }
+
+    /**
+     * Adapts the concurrency limit to the processing time of a finished page.
+     *
+     * @param nanos the processing time of the page
+     * @param pixels the number of pixels of the page
+     * @param saturated true if pages were waiting because the limit was reached
+     */
+    synchronized void addSample(long nanos, long pixels, boolean saturated) {
+        double latency = (double) nanos / Math.max(1, pixels);
+        if (longTermLatency == 0) {
+            shortTermLatency = latency;
+            longTermLatency = latency;
+        } else {
+            shortTermLatency += SHORT_TERM_WEIGHT * (latency - shortTermLatency);
+            longTermLatency += LONG_TERM_WEIGHT * (latency - longTermLatency);
+        }
+        completionsSinceChange++;
+        if (completionsSinceChange < getCurrentLimit()) {
+            // wait for the pages started with the current limit before changing it again
+            return;
+        }
+        if (shortTermLatency > longTermLatency * LATENCY_TOLERANCE) {
+            limit = Math.max(1, limit * DECREASE_FACTOR);
+            completionsSinceChange = 0;
+        } else if (saturated && limit < maxConcurrency) {
+            limit = Math.min(maxConcurrency, limit + 1);
+            completionsSinceChange = 0;
+        }
+    }
+
+    /**
+     * Returns the current concurrency limit, which is below the configured maximum if the adaptive limit was lowered.
+     */
+    public synchronized int getCurrentLimit() {
+        return Math.max(1, (int) limit);
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    public synchronized long getMemoryInUse() {
+        return memoryInUse;
+    }
+
+    /**
+     * The admission of one page.
+     */
+    public class Permit implements AutoCloseable {
+        private final Object owner;
+        private final long pixels;
+        private final long memory;
+        private boolean granted;
+        private boolean released;
+        private long start;
+        private int passedOver;
+
+        private Permit(Object owner, long pixels, long memory) {
+            this.owner = owner;
+            this.pixels = pixels;
+            this.memory = memory;
+        }
+
+        /**
+         * Frees the capacity of the page and records its processing time.
+         */
+        @Override
+        public void close() {
+            release(this, true);
+        }
+    }
+}
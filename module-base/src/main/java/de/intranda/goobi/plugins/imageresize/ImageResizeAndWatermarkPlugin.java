@@ -1,34 +1,44 @@
 package de.intranda.goobi.plugins.imageresize;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.configuration.SubnodeConfiguration;
 import org.apache.commons.configuration.XMLConfiguration;
-import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
-import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
 import org.goobi.beans.Step;
 import org.goobi.production.enums.LogType;
 import org.goobi.production.enums.PluginGuiType;
 import org.goobi.production.enums.PluginReturnValue;
 import org.goobi.production.enums.PluginType;
 import org.goobi.production.enums.StepReturnValue;
+import org.goobi.production.enums.StepStatus;
 import org.goobi.production.plugin.interfaces.IStepPluginVersion2;
 
-import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.helper.CloseStepHelper;
 import de.sub.goobi.helper.Helper;
-import de.sub.goobi.helper.ShellScript;
 import de.sub.goobi.helper.exceptions.DAOException;
 import de.sub.goobi.helper.exceptions.SwapException;
+import de.sub.goobi.persistence.managers.StepManager;
 import lombok.extern.log4j.Log4j2;
 import net.xeoh.plugins.base.annotations.PluginImplementation;
 import ugh.dl.DigitalDocument;
@@ -45,42 +55,46 @@ import ugh.exceptions.WriteException;
 public class ImageResizeAndWatermarkPlugin implements IStepPluginVersion2 {
 
     private static String TITLE = "intranda_step_image_resize_and_watermark";
+    private static final String QUARANTINE_REPORT = "imageresize-quarantine.txt";
+    private static final long PROGRESS_REPORT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(10);
     private Step step;
     private XMLConfiguration pluginConfig;
     private SubnodeConfiguration projectAndStepConfig;
-
+    private ConfigurationIndex.StepSettings stepSettings;
+    private ImageProcessingBackend backend;
+    private StageMetrics stageMetrics;
+    private final AtomicLong processedPages = new AtomicLong();
+    private final AtomicLong processedPixels = new AtomicLong();
+    private JobProgress progress;
+    private DuplicatePages duplicatePages;
+    private String configurationError;
+    private boolean background;
+
+    /**
+     * Loads the configuration of the step. Errors are not thrown but reported to the process journal by {@link #run()}.
+     */
     @Override
     public void initialize(Step step, String returnPath) {
         this.step = step;
 
-        String projectName = step.getProzess().getProjekt().getTitel();
-        pluginConfig = ConfigPlugins.getPluginConfig(TITLE);
-        pluginConfig.setExpressionEngine(new XPathExpressionEngine());
-        pluginConfig.setReloadingStrategy(new FileChangedReloadingStrategy());
-
-        // order of configuration is:
-        // 1.) project name and step name matches
-        // 2.) step name matches and project is *
-        // 3.) project name matches and step name is *
-        // 4.) project name and step name are *
         try {
-            projectAndStepConfig = pluginConfig.configurationAt("//config[./project = '" + projectName + "'][./step = '" + step.getTitel() + "']");
-        } catch (IllegalArgumentException e) {
-            try {
-                projectAndStepConfig = pluginConfig.configurationAt("//config[./project = '*'][./step = '" + step.getTitel() + "']");
-            } catch (IllegalArgumentException e1) {
-                try {
-                    projectAndStepConfig = pluginConfig.configurationAt("//config[./project = '" + projectName + "'][./step = '*']");
-                } catch (IllegalArgumentException e2) {
-                    projectAndStepConfig = pluginConfig.configurationAt("//config[./project = '*'][./step = '*']");
-                }
-            }
+            String projectName = step.getProzess().getProjekt().getTitel();
+            ConfigurationIndex configurationIndex = ConfigurationIndex.getInstance(TITLE);
+            pluginConfig = configurationIndex.getPluginConfig();
+            stepSettings = configurationIndex.getStepSettings(projectName, step.getTitel());
+            projectAndStepConfig = stepSettings.getConfig();
+        } catch (RuntimeException e) {
+            log.error("Error reading the configuration of step {}", step.getId(), e);
+            configurationError = e.getMessage();
         }
     }
 
+    /**
+     * Processes the images and returns when they are done, also in asynchronous mode, as true would close a step that is still in work.
+     */
     @Override
     public boolean execute() {
-        PluginReturnValue ret = run();
+        PluginReturnValue ret = run(false);
         return ret != PluginReturnValue.ERROR;
     }
 
@@ -124,23 +138,103 @@ public class ImageResizeAndWatermarkPlugin implements IStepPluginVersion2 {
         return TITLE;
     }
 
+    /**
+     * Processes the images of the step. In asynchronous mode, the work is submitted as a background job and WAIT is returned; the job closes
+     * the step when it is done, or sets it to error.
+     *
+     * Jobs are not persisted. A step that was left waiting by a restart of Goobi has no job anymore, so running it again submits a new job.
+     * If the job of the step is still queued or running, nothing is submitted.
+     *
+     * The plugin has no user interface, so a background job reports its progress to the process journal: the number of pages when it starts,
+     * pages done and the estimated remaining time every ten minutes, and the summary at the end.
+     */
     @Override
     public PluginReturnValue run() {
-        boolean resizeOK = resizeImages();
-        if (!resizeOK) {
+        return run(true);
+    }
+
+    private PluginReturnValue run(boolean allowAsync) {
+        if (configurationError != null) {
+            writeErrorToProcessLog("Error reading the plugin configuration: " + configurationError);
             return PluginReturnValue.ERROR;
         }
-        boolean waterMarksOK = addWatermarks();
-        if (!waterMarksOK) {
+        try {
+            if (!allowAsync || !projectAndStepConfig.getBoolean("async", false)) {
+                return runWithProgress();
+            }
+            ImageProcessingJobs jobs = ImageProcessingJobs.getInstance();
+            jobs.configure(pluginConfig.getInt("asyncMaxJobs", Runtime.getRuntime().availableProcessors()));
+            if (!jobs.submit(step.getProcessId(), step.getId(), this::runInBackground)) {
+                log.info("Image processing of step {} is already queued or running", step.getId());
+            }
+            return PluginReturnValue.WAIT;
+        } catch (RuntimeException e) {
+            log.error("Image processing of step {} failed", step.getId(), e);
+            writeErrorToProcessLog("Image processing failed unexpectedly: " + e);
             return PluginReturnValue.ERROR;
         }
-        return PluginReturnValue.FINISH;
     }
 
-    private boolean resizeImages() {
-        String gmPath = pluginConfig.getString("gmPath", "/usr/bin/gm");
-        String exifPath = pluginConfig.getString("exifToolPath", "/usr/bin/exiftool");
+    /**
+     * Runs the step as background job. Whatever happens, the step does not stay waiting: it is closed if all images were processed and set to
+     * error otherwise, including unexpected exceptions.
+     */
+    private void runInBackground() {
+        background = true;
+        PluginReturnValue result;
+        try {
+            result = runWithProgress();
+        } catch (Throwable e) {
+            log.error("Background image processing of step {} failed", step.getId(), e);
+            writeErrorToProcessLog("Image processing failed unexpectedly: " + e);
+            setStepToError();
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            return;
+        }
+        if (result != PluginReturnValue.FINISH) {
+            setStepToError();
+            return;
+        }
+        try {
+            if (!CloseStepHelper.closeStep(step, null)) {
+                writeErrorToProcessLog("All images were processed, but the step could not be closed.");
+                setStepToError();
+            }
+        } catch (RuntimeException e) {
+            log.error("Closing step {} after background image processing failed", step.getId(), e);
+            writeErrorToProcessLog("All images were processed, but closing the step failed: " + e);
+            setStepToError();
+        }
+    }
+
+    private void setStepToError() {
+        step.setBearbeitungsstatusEnum(StepStatus.ERROR);
+        try {
+            StepManager.saveStep(step);
+        } catch (DAOException e) {
+            log.error(e);
+        }
+    }
 
+    /**
+     * Returns the progress of the image processing of the step, or null if it is neither queued nor running.
+     */
+    public JobProgress getProgress() {
+        return ImageProcessingJobs.getInstance().getProgress(step.getId());
+    }
+
+    private PluginReturnValue runWithProgress() {
+        progress = ImageProcessingJobs.getInstance().start(step.getProcessId(), step.getId());
+        try {
+            return processStep();
+        } finally {
+            ImageProcessingJobs.getInstance().finish(progress);
+        }
+    }
+
+    private PluginReturnValue processStep() {
         org.goobi.beans.Process process = step.getProzess();
 
         String sourceDir = null;
@@ -148,253 +242,550 @@ public class ImageResizeAndWatermarkPlugin implements IStepPluginVersion2 {
         try {
             sourceDir = process.getConfiguredImageFolder(projectAndStepConfig.getString("sourceDir", "media"));
             destDir = process.getConfiguredImageFolder(projectAndStepConfig.getString("destDir", "media"));
-        } catch (IOException | SwapException | DAOException e2) {
+        } catch (IOException | SwapException | DAOException e) {
             writeErrorToProcessLog("Error reading configured input and output folders");
-            log.error(e2);
-            return false;
+            log.error(e);
+            return PluginReturnValue.ERROR;
         }
 
-        int size = 1500;
+        ConfigurationIndex.ResolvedSettings settings;
         try {
-            size = getResizeSize();
-        } catch (PreferencesException | ReadException | WriteException | IOException | InterruptedException | SwapException | DAOException e3) {
-            writeErrorToProcessLog("Error reading metadata to determine resizing size.");
-            log.error(e3);
-            return false;
+            settings = resolveSettings();
+        } catch (PreferencesException | ReadException | WriteException | IOException | InterruptedException | SwapException | DAOException e) {
+            writeErrorToProcessLog("Error reading metadata from process.");
+            log.error(e);
+            return PluginReturnValue.ERROR;
+        } catch (IllegalArgumentException e) {
+            writeErrorToProcessLog("Error in the plugin configuration: " + e.getMessage());
+            return PluginReturnValue.ERROR;
         }
+        int size = settings.getResizeTo();
         if (size == 0) {
             writeErrorToProcessLog("There is no image size configured for this process. Please check the plugin configuration.");
-            return false;
+            return PluginReturnValue.ERROR;
         }
-        String convertSize = String.format("%dx%d>", size, size);
-        Path destDirPath = Paths.get(destDir);
+
+        //find which (if any) watermark we want to render
+        List<WatermarkDescription> watermarkDescriptions = settings.getWatermarkDescriptions();
+
+        List<OutputTarget> targets = new ArrayList<>();
+        targets.add(new OutputTarget(Paths.get(destDir), size, true, settings.getPyramidTiff()));
         try {
-            Files.createDirectories(destDirPath);
-        } catch (IOException e2) {
+            for (ConfigurationIndex.Target target : settings.getTargets()) {
+                if (target.getResizeTo() == 0) {
+                    writeErrorToProcessLog("There is no image size configured for the target folder " + target.getDestDir() + ".");
+                    return PluginReturnValue.ERROR;
+                }
+                targets.add(new OutputTarget(Paths.get(process.getConfiguredImageFolder(target.getDestDir())), target.getResizeTo(),
+                        target.isWatermark(), target.getPyramidTiff()));
+            }
+        } catch (IOException | SwapException | DAOException e) {
+            writeErrorToProcessLog("Error reading configured output folders");
+            log.error(e);
+            return PluginReturnValue.ERROR;
+        }
+        for (OutputTarget target : targets) {
+            try {
+                Files.createDirectories(target.getDestDir());
+            } catch (IOException e) {
+            }
         }
 
+        List<Path> images = new ArrayList<>();
         try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(Paths.get(sourceDir))) {
             for (Path p : dirStream) {
-                String inputAbsolutePath = p.toAbsolutePath().toString();
-                String outputAbsolutePath = destDirPath.resolve(p.getFileName()).toAbsolutePath().toString();
+                // the source folder may be the destination folder with the manifest and temporary files of this plugin
+                if (Files.isRegularFile(p) && !ProcessingManifest.isManifestFile(p) && !StagingArea.isPartFile(p)) {
+                    images.add(p);
+                }
+            }
+        } catch (IOException e) {
+            log.error(e);
+            writeErrorToProcessLog("Error converting images");
+            return PluginReturnValue.ERROR;
+        }
+        Collections.sort(images);
+
+        ProcessingManifest manifest = null;
+        if (projectAndStepConfig.getBoolean("incremental", false)) {
+            try {
+                manifest = ProcessingManifest.load(targets.get(0).getDestDir(), projectAndStepConfig.getBoolean("incrementalHash", false));
+                images = findChangedImages(images, targets, manifest, createConfigFingerprint(targets, watermarkDescriptions));
+            } catch (IOException | RuntimeException e) {
+                log.error(e);
+                writeErrorToProcessLog("Error reading the list of already processed images.");
+                return PluginReturnValue.ERROR;
+            }
+        }
+
+        progress.setPagesTotal(images.size());
+        if (background) {
+            writeInfoToProcessLog("Image processing started in the background: " + images.size() + " pages.");
+        }
+        long runStart = System.nanoTime();
+        configureScheduler();
+        stageMetrics = new StageMetrics(StageMetrics.MAX_SAMPLES, ImageProcessingMetrics.getInstance().getStageMetrics());
+        processedPages.set(0);
+        processedPixels.set(0);
+        duplicatePages = null;
+        if (projectAndStepConfig.getBoolean("deduplicate", false)) {
+            long start = System.nanoTime();
+            try {
+                duplicatePages = DuplicatePages.find(images, getThreadCount());
+            } catch (IOException e) {
+                log.error(e);
+                writeErrorToProcessLog("Error comparing the content of the images.");
+                return PluginReturnValue.ERROR;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                writeErrorToProcessLog("Image processing was interrupted.");
+                return PluginReturnValue.ERROR;
+            }
+            stageMetrics.record("deduplicate", start, 0, 0);
+            images = duplicatePages.getUniquePages();
+        }
+        backend = new MeteredBackend(createBackend(), stageMetrics);
+        if (!preRenderWatermarkImages(watermarkDescriptions)) {
+            backend.close();
+            return PluginReturnValue.ERROR;
+        }
+        ImageDimensionProbe dimensionProbe = new ImageDimensionProbe(backend);
+        WatermarkCache watermarkCache = new WatermarkCache(backend, dimensionProbe, projectAndStepConfig.getInt("watermarkCacheSize", 32));
+        PageProcessor pageProcessor;
+        try {
+            String scratchDir = pluginConfig.getString("scratchDir", System.getProperty("java.io.tmpdir"));
+            pageProcessor = new PageProcessor(backend, dimensionProbe, watermarkCache, Paths.get(scratchDir), targets, stageMetrics,
+                    watermarkDescriptions, projectAndStepConfig.getBoolean("fusedPipeline", false), "process-" + step.getProcessId());
+        } catch (IOException e) {
+            log.error(e);
+            writeErrorToProcessLog("Error creating the scratch folder for image processing.");
+            watermarkCache.close();
+            backend.close();
+            return PluginReturnValue.ERROR;
+        }
+        pageProcessor.setRetries(projectAndStepConfig.getInt("retries", 2), projectAndStepConfig.getLong("retryDelay", 10) * 1000);
+        try {
+            boolean imagesOK;
+            if (projectAndStepConfig.getBoolean("distributed", false)) {
+                DistributedJob job = createDistributedJob(Paths.get(sourceDir), targets, watermarkDescriptions);
+                imagesOK = processImagesDistributed(images, pageProcessor, job, manifest);
+            } else {
+                imagesOK = processImages(images, pageProcessor, manifest);
+            }
+            if (!imagesOK) {
+                return PluginReturnValue.ERROR;
+            }
+        } finally {
+            watermarkCache.close();
+            pageProcessor.close();
+            backend.close();
+            if (manifest != null) {
                 try {
-                    ShellScript shell = new ShellScript(Paths.get(gmPath));
-                    int returnCode = shell.run(
-                            Arrays.asList("convert", "-auto-orient", inputAbsolutePath, "-resize", convertSize, outputAbsolutePath));
-                    if (returnCode != 0) {
-                        writeErrorToProcessLog("Error converting image. Command output:\n" + shell.getStdErr());
-                        return false;
-                    }
-                    //make sure the orientation tag is gone, so the image is displayed in a sane way
-                    ShellScript shell2 = new ShellScript(Paths.get(exifPath));
-                    int returnCode2 = shell2.run(
-                            Arrays.asList("-Orientation=", outputAbsolutePath, "-overwrite_original"));
-                    if (returnCode2 != 0) {
-                        writeErrorToProcessLog("Error converting image. Command output:\n" + shell2.getStdErr());
-                        return false;
-                    }
-                } catch (InterruptedException e) {
+                    manifest.save();
+                } catch (IOException e) {
                     log.error(e);
+                    writeErrorToProcessLog("Error saving the list of processed images.");
                 }
             }
-        } catch (IOException e1) {
-            log.error(e1);
-            writeErrorToProcessLog("Error converting images");
-            return false;
+            writeSummaryToProcessLog(runStart);
         }
-        return true;
+        return PluginReturnValue.FINISH;
     }
 
-    private int getResizeSize()
-            throws PreferencesException, ReadException, WriteException, IOException, InterruptedException, SwapException, DAOException {
-        DigitalDocument digDoc = step.getProzess().readMetadataFile().getDigitalDocument();
-        Prefs prefs = step.getProzess().getRegelsatz().getPreferences();
-        String collectionName = getMedatataValue("singleDigCollection", digDoc, prefs);
-        String mediaType = getMedatataValue("Type", digDoc, prefs);
+    /**
+     * Writes the number of pages and megapixels, the wall time and the time spent in each processing stage to the process journal.
+     */
+    private void writeSummaryToProcessLog(long runStart) {
+        long pages = processedPages.get();
+        long pixels = processedPixels.get();
+        ImageProcessingMetrics.getInstance().addRun(pages, pixels);
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Image processing summary: %d pages, %.1f megapixels, %.1f s wall time", pages, pixels / 1000000.0,
+                (System.nanoTime() - runStart) / 1000000000.0));
+        for (StageStatistics statistics : stageMetrics.getStatistics()) {
+            summary.append("; ").append(statistics);
+        }
+        log.info(summary);
+        writeInfoToProcessLog(summary.toString());
+    }
 
-        List<HierarchicalConfiguration> imageConfigs = findImageConfigs(collectionName, mediaType, projectAndStepConfig);
-        if (imageConfigs.isEmpty()) {
-            return 0;
+    /**
+     * Determines which images need to be processed in incremental mode. Images are processed again if they are new, if their size, modification
+     * date or content changed, or if their result is missing in one of the target folders. If the configuration changed, all images are
+     * processed. Results of source images that do not exist anymore are deleted from all target folders.
+     */
+    private List<Path> findChangedImages(List<Path> images, List<OutputTarget> targets, ProcessingManifest manifest, String configFingerprint)
+            throws IOException {
+        if (!manifest.checkConfigFingerprint(configFingerprint)) {
+            return images;
+        }
+        Set<String> removedImages = manifest.getFilenames();
+        List<Path> changedImages = new ArrayList<>();
+        for (Path image : images) {
+            removedImages.remove(image.getFileName().toString());
+            if (!manifest.isUpToDate(image, targets.get(0).getDerivative(image)) || !existsInAllTargets(image, targets)) {
+                changedImages.add(image);
+            }
+        }
+        for (String filename : removedImages) {
+            for (OutputTarget target : targets) {
+                Files.deleteIfExists(target.getDestDir().resolve(target.getFileName(filename)));
+            }
+            manifest.remove(filename);
         }
+        log.info("Incremental mode: {} of {} images changed, {} removed", changedImages.size(), images.size(), removedImages.size());
+        return changedImages;
+    }
 
-        return imageConfigs.get(0).getInt("./resizeTo", 0);
+    private boolean existsInAllTargets(Path image, List<OutputTarget> targets) {
+        for (OutputTarget target : targets) {
+            if (!Files.exists(target.getDerivative(image))) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void writeErrorToProcessLog(String content) {
-        Helper.addMessageToProcessJournal(step.getProcessId(), LogType.ERROR, content, "automatic");
+    /**
+     * Creates a fingerprint of everything in the configuration that influences the resulting images.
+     */
+    private String createConfigFingerprint(List<OutputTarget> targets, List<WatermarkDescription> watermarkDescriptions) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (OutputTarget target : targets) {
+            sb.append(target.getDestDir()).append(';').append(target.getSize()).append(';').append(target.isWatermark());
+            sb.append(';').append(target.getPyramidTiff()).append('|');
+        }
+        sb.append(projectAndStepConfig.getString("backend", "graphicsmagick"))
+                .append('|')
+                .append(projectAndStepConfig.getBoolean("fusedPipeline", false))
+                .append('|')
+                .append(getMemoryBudget());
+        for (WatermarkDescription wd : watermarkDescriptions) {
+            sb.append('|').append(wd.isImage()).append(';').append(wd.getImagePath()).append(';').append(wd.getText());
+            sb.append(';').append(wd.getLocation()).append(';').append(wd.getXDistance()).append(';').append(wd.getYDistance());
+            sb.append(';').append(wd.getFont()).append(';').append(wd.getBoxSize()).append(';').append(wd.getShadeSize());
+            if (wd.isImage() && Files.exists(wd.getImagePath())) {
+                // a replaced watermark image changes the results as well
+                sb.append(';').append(Files.size(wd.getImagePath())).append(';').append(Files.getLastModifiedTime(wd.getImagePath()).toMillis());
+            }
+        }
+        return ProcessingManifest.hash(sb.toString());
     }
 
-    private boolean addWatermarks() {
-        String convertPath = pluginConfig.getString("convertPath", "/usr/bin/convert");
-        //first, find which (if any) watermark we want to render
-        List<WatermarkDescription> watermarkDescriptions = new ArrayList<>();
-        try {
-            watermarkDescriptions = findWatermarkDescriptions();
-        } catch (PreferencesException | ReadException | WriteException | IOException | InterruptedException | SwapException | DAOException e1) {
-            writeErrorToProcessLog("Error reading metadata from process.");
-            log.error(e1);
+    /**
+     * Sends every image through its own resize and watermark chain on a bounded worker pool. Once a page has failed, pages that have not been
+     * started yet are skipped, but pages already in progress are allowed to finish. Errors are written to the process journal in page order.
+     * Each page is processed in the staging area and published to the destination folder as soon as it is finished. Successfully processed
+     * images are recorded in the manifest, if one is given.
+     *
+     * If quarantine is enabled, failed pages do not stop the others. They are listed in the quarantine report instead, so that only they need
+     * to be processed again.
+     * 
+     * @return true if all images were processed successfully
+     */
+    private boolean processImages(List<Path> images, PageProcessor pageProcessor, ProcessingManifest manifest) {
+        if (!preparePageProcessor(pageProcessor)) {
             return false;
         }
-        if (watermarkDescriptions.isEmpty()) {
-            //            LogEntry le = LogEntry.build(step.getProcessId())
-            //                    .withCreationDate(new Date())
-            //                    .withContent("Could not find any watermark configuration for this process - not watermarking")
-            //                    .withType(LogType.DEBUG)
-            //                    .withUsername("automatic");
-            //            ProcessManager.saveLogEntry(le);
-            return true;
+        boolean quarantine = projectAndStepConfig.getBoolean("quarantine", false);
+        int threads = getThreadCount();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(images.size(), 1)));
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Path image : images) {
+            futures.add(executor.submit(() -> {
+                if (failed.get()) {
+                    return null;
+                }
+                try {
+                    pageProcessor.process(image);
+                    recordProcessedImage(image, pageProcessor, manifest);
+                } catch (ImageProcessingException | IOException | RuntimeException e) {
+                    failed.set(!quarantine);
+                    throw e;
+                }
+                return null;
+            }));
         }
-        boolean preRenderOK = preRenderWatermarkImages(convertPath, watermarkDescriptions);
-        if (!preRenderOK) {
-            return false;
+        executor.shutdown();
+
+        Map<String, String> failures = new LinkedHashMap<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                log.error(e.getCause());
+                failures.put(images.get(i).getFileName().toString(), e.getCause().getMessage());
+                writeErrorToProcessLog(images.get(i).getFileName() + ": " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                writeErrorToProcessLog("Image processing was interrupted.");
+                return false;
+            }
         }
-        org.goobi.beans.Process process = step.getProzess();
-        String destDir = null;
-        try {
-            destDir = process.getConfiguredImageFolder(projectAndStepConfig.getString("destDir", "media"));
-        } catch (IOException | SwapException | DAOException e) {
-            writeErrorToProcessLog("Error reading configured input and output folders");
-            log.error(e);
-            return false;
+        addDuplicateFailures(images, failures);
+        if (quarantine) {
+            writeQuarantineReport(failures);
         }
-        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(Paths.get(destDir))) {
-            //for each image, composite image with watermarks
-            for (Path canvasImage : dirStream) {
-                for (WatermarkDescription watermarkDescription : watermarkDescriptions) {
-                    renderWatermarkToImage(canvasImage, watermarkDescription);
+        return failures.isEmpty();
+    }
+
+    /**
+     * Adds the duplicates of the failed pages to the failures, as their results are missing as well.
+     */
+    private void addDuplicateFailures(List<Path> images, Map<String, String> failures) {
+        if (duplicatePages == null) {
+            return;
+        }
+        for (Path image : images) {
+            String failure = failures.get(image.getFileName().toString());
+            if (failure != null) {
+                for (Path duplicate : duplicatePages.getDuplicates(image)) {
+                    failures.put(duplicate.getFileName().toString(), "same content as " + image.getFileName() + ": " + failure);
                 }
             }
-        } catch (IOException e1) {
-            writeErrorToProcessLog("Error listing source directory for watermarking.");
-            log.error(e1);
-            return false;
-        } finally {
-            cleanupTempWatermarkImages(watermarkDescriptions);
         }
+    }
 
-        return true;
+    /**
+     * Writes the pages that failed even after all retries to the quarantine report in the process folder, or deletes the report of a previous
+     * run if all pages were processed successfully.
+     */
+    private void writeQuarantineReport(Map<String, String> failures) {
+        try {
+            Path report = Paths.get(step.getProzess().getProcessDataDirectory(), QUARANTINE_REPORT);
+            if (failures.isEmpty()) {
+                Files.deleteIfExists(report);
+                return;
+            }
+            List<String> lines = new ArrayList<>();
+            lines.add("# " + failures.size() + " pages failed at " + Instant.now());
+            for (Map.Entry<String, String> failure : failures.entrySet()) {
+                lines.add(failure.getKey() + "\t" + failure.getValue().replaceAll("\\s+", " "));
+            }
+            Files.write(report, lines, StandardCharsets.UTF_8);
+            writeErrorToProcessLog(failures.size() + " pages were quarantined, see " + report);
+        } catch (IOException | SwapException e) {
+            log.error(e);
+            writeErrorToProcessLog("Error writing the quarantine report.");
+        }
     }
 
-    private boolean renderWatermarkToImage(Path canvasImage, WatermarkDescription wd) {
-        //gm composite -dissolve 50% -geometry +550+400 -gravity southeast WATERMARK_FILE.png canvas.tif result.tif
-        int[] canvasDimensions = getImageDimensions(canvasImage);
-        int[] watermarkDimensions = getImageDimensions(wd.getImagePath());
-        if (canvasDimensions == null || watermarkDimensions == null) {
+    /**
+     * Splits the pages into chunks of a work queue on the shared file system, so worker JVMs on other nodes can process them as well. The step
+     * works on the queue itself until no chunk is left to claim and then waits until the chunks leased by other workers are finished. Chunks
+     * of workers that stop sending heartbeats are claimed again after the lease timeout. Unlike in the local mode, all pages are processed
+     * even if some of them fail.
+     *
+     * @return true if all images were processed successfully
+     */
+    private boolean processImagesDistributed(List<Path> images, PageProcessor pageProcessor, DistributedJob job, ProcessingManifest manifest) {
+        if (!preparePageProcessor(pageProcessor)) {
             return false;
         }
-        Path watermarkImagePath = resizeWatermarkIfNecessary(wd.getImagePath(), canvasDimensions, watermarkDimensions);
-        if (watermarkImagePath == null) {
-            return false;
+        if (images.isEmpty()) {
+            return true;
         }
-        String gmPath = pluginConfig.getString("gmPath", "/usr/bin/gm");
-        List<String> params = Arrays.asList("composite", "-dissolve", "50%", "-geometry",
-                String.format("+%d+%d", wd.getXDistance(), wd.getYDistance()), "-gravity",
-                wd.getLocation(), watermarkImagePath.toAbsolutePath().toString(), canvasImage.toAbsolutePath().toString(),
-                canvasImage.toAbsolutePath().toString());
+        List<String> pages = new ArrayList<>();
+        for (Path image : images) {
+            pages.add(image.getFileName().toString());
+        }
+        Path queueDir = Paths.get(pluginConfig.getString("distributedQueueDir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "imageresize-queue").toString()));
+        String jobName = "process-" + step.getProcessId() + "-" + UUID.randomUUID();
+        WorkQueue queue;
         try {
-            ShellScript shell = new ShellScript(Paths.get(gmPath));
-            int returnCode = shell.run(params);
-            if (returnCode != 0) {
-                writeErrorToProcessLog("Error watermarking image. Process output was:\n" + shell.getStdErr());
-                return false;
+            queue = WorkQueue.create(queueDir, jobName, job.toProperties(), job.getFiles(), pages,
+                    projectAndStepConfig.getInt("distributedChunkSize", 50), projectAndStepConfig.getLong("distributedLeaseTimeout", 120));
+        } catch (IOException e) {
+            log.error(e);
+            writeErrorToProcessLog("Error creating the work queue in " + queueDir);
+            return false;
+        }
+        Map<String, String> failures;
+        try (DistributedWorker worker = new DistributedWorker(queue, pageProcessor, job.getSourceDir(), getThreadCount())) {
+            while (!queue.isComplete()) {
+                if (worker.processAvailableChunks() == 0) {
+                    Thread.sleep(1000);
+                }
             }
-        } catch (IOException | InterruptedException e) {
-            writeErrorToProcessLog("Error watermarking image.");
+            failures = queue.getFailures();
+            addDuplicateFailures(images, failures);
+        } catch (IOException e) {
             log.error(e);
+            writeErrorToProcessLog("Error reading the work queue in " + queue.getJobDir());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writeErrorToProcessLog("Image processing was interrupted.");
+            try {
+                queue.cancel();
+            } catch (IOException e1) {
+                log.error(e1);
+            }
             return false;
         } finally {
-            if (!watermarkImagePath.equals(wd.getImagePath())) {
+            queue.delete();
+        }
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+            writeErrorToProcessLog(failure.getKey() + ": " + failure.getValue());
+        }
+        if (projectAndStepConfig.getBoolean("quarantine", false)) {
+            writeQuarantineReport(failures);
+        }
+        for (Path image : images) {
+            if (!failures.containsKey(image.getFileName().toString())) {
                 try {
-                    Files.delete(watermarkImagePath);
-                } catch (IOException e) {
+                    recordProcessedImage(image, pageProcessor, manifest);
+                } catch (ImageProcessingException | IOException e) {
                     log.error(e);
+                    writeErrorToProcessLog(image.getFileName() + ": " + e.getMessage());
+                    return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    writeErrorToProcessLog("Image processing was interrupted.");
+                    return false;
                 }
             }
         }
-        return true;
+        return failures.isEmpty();
     }
 
-    private Path resizeWatermarkIfNecessary(Path imagePath, int[] canvasDimensions, int[] watermarkDimensions) {
-        double scaleFactorX = 1;
-        double scaleFactorY = 1;
-        if (canvasDimensions[0] - 200 < watermarkDimensions[0]) {
-            scaleFactorX = ((double) canvasDimensions[0] - 200) / (watermarkDimensions[0]);
-        }
-        if (canvasDimensions[1] - 200 < watermarkDimensions[1]) {
-            scaleFactorY = ((double) canvasDimensions[1] - 200) / (watermarkDimensions[1]);
-        }
-        int scaleFactor = (int) (Math.min(scaleFactorX, scaleFactorY) * 100);
-        if (scaleFactor < 100) {
-            String filename = imagePath.getFileName().toString();
-            String basename = filename.substring(0, filename.lastIndexOf('.'));
-            String tmpdir = System.getProperty("java.io.tmpdir");
-            Path resizedWatermark = Paths.get(tmpdir, basename + "_resized_" + UUID.randomUUID().toString() + ".png");
-            String gmPath = pluginConfig.getString("gmPath", "/usr/bin/gm");
-            List<String> params = Arrays.asList("convert", imagePath.toAbsolutePath().toString(), "-resize", Integer.toString(scaleFactor) + "%",
-                    resizedWatermark.toAbsolutePath().toString());
-            try {
-                ShellScript shell = new ShellScript(Paths.get(gmPath));
-                int ret = shell.run(params);
-                if (ret != 0) {
-                    writeErrorToProcessLog("Error watermarking image. Process output was:\n" + shell.getStdErr());
-                    return null;
-                }
-            } catch (IOException | InterruptedException e) {
-                writeErrorToProcessLog("Error watermarking image.");
-                log.error(e);
-                return null;
-            }
-            return resizedWatermark;
-        }
-        return imagePath;
+    /**
+     * Describes the current run for the worker JVMs of the distributed mode.
+     */
+    private DistributedJob createDistributedJob(Path sourceDirPath, List<OutputTarget> targets, List<WatermarkDescription> watermarkDescriptions) {
+        DistributedJob job = new DistributedJob();
+        job.setSourceDir(sourceDirPath);
+        job.setTargets(targets);
+        job.setFused(projectAndStepConfig.getBoolean("fusedPipeline", false));
+        job.setBackend(projectAndStepConfig.getString("backend", "graphicsmagick"));
+        job.setGmPath(pluginConfig.getString("gmPath", "/usr/bin/gm"));
+        job.setConvertPath(pluginConfig.getString("convertPath", "/usr/bin/convert"));
+        job.setExifToolPath(pluginConfig.getString("exifToolPath", "/usr/bin/exiftool"));
+        job.setGmBatch(projectAndStepConfig.getBoolean("gmBatch", false));
+        job.setGmBatchMaxCommands(projectAndStepConfig.getInt("gmBatchMaxCommands", 500));
+        job.setMemoryBudget(getMemoryBudget());
+        job.setWatermarkCacheSize(projectAndStepConfig.getInt("watermarkCacheSize", 32));
+        job.setWatermarkDescriptions(watermarkDescriptions);
+        job.setCommandTimeout(getCommandTimeout());
+        job.setCommandTimeoutPerMegabyte(getCommandTimeoutPerMegabyte());
+        job.setRetries(projectAndStepConfig.getInt("retries", 2));
+        job.setRetryDelay(projectAndStepConfig.getLong("retryDelay", 10) * 1000);
+        return job;
     }
 
-    private int[] getImageDimensions(Path imagePath) {
-        String gmPath = pluginConfig.getString("gmPath", "/usr/bin/gm");
-        List<String> params = Arrays.asList("identify", "-ping", "-format", "%w %h", imagePath.toAbsolutePath().toString());
+    private boolean preparePageProcessor(PageProcessor pageProcessor) {
         try {
-            ShellScript shell = new ShellScript(Paths.get(gmPath));
-            int ret = shell.run(params);
-            if (ret != 0) {
-                writeErrorToProcessLog("Error watermarking image. Process output was:\n" + shell.getStdErr());
-                return null;
-            }
-            if (shell.getStdOut().isEmpty()) {
-                writeErrorToProcessLog("Error watermarking image: Unexpected output from identify.");
-                return null;
-            }
-            String[] split = shell.getStdOut().get(0).trim().split(" ");
-            int[] dimensions = Arrays.stream(split).mapToInt(Integer::parseInt).toArray();
-            return dimensions;
-        } catch (IOException | InterruptedException e) {
-            writeErrorToProcessLog("Error watermarking image.");
+            pageProcessor.prepare();
+            return true;
+        } catch (ImageProcessingException e) {
             log.error(e);
-            return null;
+            writeErrorToProcessLog(e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writeErrorToProcessLog("Image processing was interrupted.");
+            return false;
         }
     }
 
-    private void cleanupTempWatermarkImages(List<WatermarkDescription> watermarkDescriptions) {
-        for (WatermarkDescription watermarkDescription : watermarkDescriptions) {
-            if (!watermarkDescription.isImage()) {
-                try {
-                    Files.deleteIfExists(watermarkDescription.getImagePath());
-                } catch (IOException e) {
-                    log.error("could not delete temp file");
-                }
+    /**
+     * Records a successfully processed image in the manifest, if one is given, and in the statistics of the run. The results are published
+     * for the pages with the same content as well.
+     */
+    private void recordProcessedImage(Path image, PageProcessor pageProcessor, ProcessingManifest manifest)
+            throws IOException, ImageProcessingException, InterruptedException {
+        int[] dimensions = pageProcessor.getImageDimensions(image);
+        recordPage(image, dimensions, manifest);
+        if (duplicatePages != null) {
+            for (Path duplicate : duplicatePages.getDuplicates(image)) {
+                pageProcessor.publishDuplicate(image, duplicate);
+                recordPage(duplicate, dimensions, manifest);
             }
         }
     }
 
-    private boolean preRenderWatermarkImages(String convertPath, List<WatermarkDescription> watermarkDescriptions) {
+    private void recordPage(Path image, int[] dimensions, ProcessingManifest manifest) throws IOException {
+        if (manifest != null) {
+            manifest.update(image);
+        }
+        processedPages.incrementAndGet();
+        progress.pageDone();
+        processedPixels.addAndGet((long) dimensions[0] * dimensions[1]);
+        if (background && progress.isReportDue(PROGRESS_REPORT_INTERVAL_NANOS)) {
+            writeInfoToProcessLog(String.format("Image processing progress: %d of %d pages, about %d minutes remaining.", progress.getPagesDone(),
+                    progress.getPagesTotal(), (progress.getEtaSeconds() + 59) / 60));
+        }
+    }
+
+    /**
+     * Calculates the dimensions of an image after "-auto-orient -resize SIZExSIZE>".
+     * 
+     * @param width the stored width of the image
+     * @param height the stored height of the image
+     * @param orientation the orientation as reported by ImageMagick, e.g. TopLeft or RightTop
+     * @param size the maximum size of the longest side
+     * @return width and height of the result
+     */
+    public static int[] calculateResizedDimensions(int width, int height, String orientation, int size) {
+        if (orientation != null && orientation.matches("(Left|Right)(Top|Bottom)")) {
+            // these orientations are rotated by 90 degrees, so width and height swap
+            int tmp = width;
+            width = height;
+            height = tmp;
+        }
+        if (width <= size && height <= size) {
+            return new int[] { width, height };
+        }
+        double scale = Math.min((double) size / width, (double) size / height);
+        return new int[] { Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale)) };
+    }
+
+    private void writeErrorToProcessLog(String content) {
+        Helper.addMessageToProcessJournal(step.getProcessId(), LogType.ERROR, content, "automatic");
+    }
+
+    private void writeInfoToProcessLog(String content) {
+        Helper.addMessageToProcessJournal(step.getProcessId(), LogType.INFO, content, "automatic");
+    }
+
+    /**
+     * Calculates the scale factor in percent a watermark needs so that it fits into the canvas with a margin of 100 pixels on each side.
+     */
+    public static int getWatermarkScaleFactor(int[] canvasDimensions, int[] watermarkDimensions) {
+        double scaleFactorX = 1;
+        double scaleFactorY = 1;
+        if (canvasDimensions[0] - 200 < watermarkDimensions[0]) {
+            scaleFactorX = ((double) canvasDimensions[0] - 200) / (watermarkDimensions[0]);
+        }
+        if (canvasDimensions[1] - 200 < watermarkDimensions[1]) {
+            scaleFactorY = ((double) canvasDimensions[1] - 200) / (watermarkDimensions[1]);
+        }
+        return (int) (Math.min(scaleFactorX, scaleFactorY) * 100);
+    }
+
+    /**
+     * Renders text watermarks into images. Rendered images are kept in a persistent cache, so identical text watermarks are only rendered once
+     * for all processes.
+     */
+    private boolean preRenderWatermarkImages(List<WatermarkDescription> watermarkDescriptions) {
+        String cacheDir = pluginConfig.getString("textWatermarkCacheDir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "goobi-watermark-cache").toString());
+        long cacheSize = pluginConfig.getLong("textWatermarkCacheSize", 64) * 1024 * 1024;
+        TextWatermarkCache textWatermarkCache = new TextWatermarkCache(Paths.get(cacheDir), cacheSize);
         for (WatermarkDescription watermarkDescription : watermarkDescriptions) {
             if (!watermarkDescription.isImage()) {
                 try {
-                    Path watermarkImagePath = renderWatermarkText(watermarkDescription, convertPath);
-                    watermarkDescription.setImagePath(watermarkImagePath);
-                } catch (IOException | InterruptedException e) {
-                    writeErrorToProcessLog("Error creating watermark image from text");
+                    watermarkDescription.setImagePath(textWatermarkCache.get(watermarkDescription, backend));
+                } catch (ImageProcessingException e) {
+                    writeErrorToProcessLog(e.getMessage());
                     log.error(e);
-
+                    return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    writeErrorToProcessLog("Error creating watermark image from text");
                     return false;
                 }
             }
@@ -402,30 +793,85 @@ public class ImageResizeAndWatermarkPlugin implements IStepPluginVersion2 {
         return true;
     }
 
-    private Path renderWatermarkText(WatermarkDescription watermarkDescription, String convertPath) throws IOException, InterruptedException {
-        // command to create watermark-file when text:
-        //convert -size 450x200 -background none -font Arial -fill white -gravity center caption:"Goobi.io" -shade 240x40 WATERMARK_FILE.png
-        String tempDir = System.getProperty("java.io.tmpdir");
-        Path watermarkFile = Paths.get(tempDir, "watermark_" + UUID.randomUUID().toString() + ".png");
-        //        ShellScript.callShell(Arrays.asList(convertPath, "-size", "450x200", "-background", "none", "-font", watermarkDescription.getFont(),
-        //                "-fill", "white", "-gravity", "center", String.format("caption:\"%s\"", watermarkDescription.getText()),
-        //                "-shade", "240x40", watermarkFile.toAbsolutePath().toString()), step.getProcessId());
-        ShellScript.callShell(
-                Arrays.asList(convertPath, "-size", watermarkDescription.getBoxSize(), "-background", "none", "-font", watermarkDescription.getFont(),
-                        "-fill", "white", "-gravity", "center", "caption:" + watermarkDescription.getText(),
-                        "-shade", watermarkDescription.getShadeSize(), watermarkFile.toAbsolutePath().toString()),
-                step.getProcessId());
-        return watermarkFile;
+    /**
+     * Returns the number of images that are processed in parallel. Defaults to the number of available processors.
+     */
+    private int getThreadCount() {
+        int threads = projectAndStepConfig.getInt("threads", Runtime.getRuntime().availableProcessors());
+        if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        return threads;
+    }
+
+    /**
+     * Applies the limits for all steps running in this JVM from the plugin configuration to the scheduler.
+     */
+    private void configureScheduler() {
+        int maxConcurrency = pluginConfig.getInt("schedulerMaxConcurrency", Runtime.getRuntime().availableProcessors());
+        long memoryLimit = pluginConfig.getLong("schedulerMemoryLimit", ImageProcessingScheduler.getDefaultMemoryLimit() / (1024 * 1024));
+        boolean adaptive = pluginConfig.getBoolean("schedulerAdaptive", true);
+        ImageProcessingScheduler.getInstance().configure(maxConcurrency, memoryLimit * 1024 * 1024, adaptive);
+    }
+
+    /**
+     * Returns the base timeout of an external command in milliseconds, or 0 for no timeout.
+     */
+    private long getCommandTimeout() {
+        return projectAndStepConfig.getLong("commandTimeout", 300) * 1000;
     }
 
-    private List<WatermarkDescription> findWatermarkDescriptions()
+    /**
+     * Returns the additional timeout of an external command per megabyte of its input image in milliseconds.
+     */
+    private long getCommandTimeoutPerMegabyte() {
+        return projectAndStepConfig.getLong("commandTimeoutPerMegabyte", 1) * 1000;
+    }
+
+    /**
+     * Returns the memory budget for decoding a single image in bytes, or 0 if the large image mode is disabled.
+     */
+    private long getMemoryBudget() {
+        if (!projectAndStepConfig.getBoolean("largeImageMode", false)) {
+            return 0;
+        }
+        return Math.max(1, projectAndStepConfig.getLong("memoryBudget", 256)) * 1024 * 1024;
+    }
+
+    /**
+     * Creates the image processing backend configured for the current step. Possible values are "graphicsmagick" (the default) and "java". If
+     * gmBatch is enabled, the GraphicsMagick backend sends its gm commands to the gm batch processes shared by all steps of the JVM.
+     */
+    private ImageProcessingBackend createBackend() {
+        String backendName = projectAndStepConfig.getString("backend", "graphicsmagick");
+        if ("java".equalsIgnoreCase(backendName)) {
+            return new JavaImageBackend(getMemoryBudget());
+        }
+        String gmPath = pluginConfig.getString("gmPath", "/usr/bin/gm");
+        String convertPath = pluginConfig.getString("convertPath", "/usr/bin/convert");
+        String exifPath = pluginConfig.getString("exifToolPath", "/usr/bin/exiftool");
+        GmBatchPool batchPool = null;
+        if (projectAndStepConfig.getBoolean("gmBatch", false)) {
+            batchPool = GmBatchPool.getShared(gmPath, getThreadCount(), projectAndStepConfig.getInt("gmBatchMaxCommands", 500));
+        }
+        GraphicsMagickBackend graphicsMagickBackend = new GraphicsMagickBackend(gmPath, convertPath, exifPath, batchPool, getMemoryBudget());
+        graphicsMagickBackend.setStageMetrics(stageMetrics);
+        graphicsMagickBackend.setCommandTimeout(getCommandTimeout(), getCommandTimeoutPerMegabyte());
+        return graphicsMagickBackend;
+    }
+
+    /**
+     * Reads collection and media type from the metadata of the process and looks up the matching image settings. The metadata file is read
+     * only once per run.
+     */
+    private ConfigurationIndex.ResolvedSettings resolveSettings()
             throws PreferencesException, ReadException, WriteException, IOException, InterruptedException, SwapException, DAOException {
         DigitalDocument digDoc = step.getProzess().readMetadataFile().getDigitalDocument();
         Prefs prefs = step.getProzess().getRegelsatz().getPreferences();
         String collectionName = getMedatataValue("singleDigCollection", digDoc, prefs);
         String mediaType = getMedatataValue("Type", digDoc, prefs);
 
-        return findWatermarkDescriptions(collectionName, mediaType, this.projectAndStepConfig);
+        return stepSettings.resolve(collectionName, mediaType);
     }
 
     private String getMedatataValue(String type, DigitalDocument digDoc, Prefs prefs) {
@@ -444,45 +890,7 @@ public class ImageResizeAndWatermarkPlugin implements IStepPluginVersion2 {
 
     public static List<WatermarkDescription> findWatermarkDescriptions(String wantedCollectionName, String wantedMediaType,
             SubnodeConfiguration config) {
-        List<WatermarkDescription> descriptions = new ArrayList<>();
-        List<HierarchicalConfiguration> imageConfigs = findImageConfigs(wantedCollectionName, wantedMediaType, config);
-        for (HierarchicalConfiguration imageConfig : imageConfigs) {
-            for (HierarchicalConfiguration watermarkConfig : imageConfig.configurationsAt("./watermark")) {
-                descriptions.add(descriptionFromConfig(watermarkConfig));
-            }
-        }
-        return descriptions;
-    }
-
-    private static List<HierarchicalConfiguration> findImageConfigs(String wantedCollectionName, String wantedMediaType,
-            SubnodeConfiguration config) {
-        List<HierarchicalConfiguration> allImageConfigs = config.configurationsAt("./imageConfig");
-        if (allImageConfigs == null) {
-            return new ArrayList<>();
-        }
-        List<HierarchicalConfiguration> filteredImageConfigs = new ArrayList<>();
-        for (HierarchicalConfiguration imageConfig : allImageConfigs) {
-            if (imageConfig.getString("@collection", "").equals("*") || imageConfig.getString("@collection", "").equals(wantedCollectionName)) {
-                String confMediaType = imageConfig.getString("@mediaType", "");
-                if (confMediaType.equals("*") || confMediaType.equals(wantedMediaType)) {
-                    filteredImageConfigs.add(imageConfig);
-                }
-            }
-        }
-        return filteredImageConfigs;
-    }
-
-    private static WatermarkDescription descriptionFromConfig(HierarchicalConfiguration watermarkConfig) {
-        String imageLocation = watermarkConfig.getString("image");
-        Path imagePath = imageLocation == null ? null : Paths.get(imageLocation);
-        String text = watermarkConfig.getString("text");
-        String location = watermarkConfig.getString("location", "southeast");
-        int xDistance = watermarkConfig.getInt("xDistance", 100);
-        int yDistance = watermarkConfig.getInt("yDistance", 100);
-        String font = watermarkConfig.getString("font", "Open-Sans");
-        String boxSize = watermarkConfig.getString("boxSize", "450x200");
-        String shadeSize = watermarkConfig.getString("shadeSize", "240x40");
-        return new WatermarkDescription(imagePath != null, imagePath, text, location, xDistance, yDistance, font, boxSize, shadeSize);
+        return new ConfigurationIndex.StepSettings(config).resolve(wantedCollectionName, wantedMediaType).getWatermarkDescriptions();
     }
 
     @Override
@@ -0,0 +1,625 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.plugins.tiff.TIFFTag;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Image operations done inside the JVM with ImageIO and Java2D. Supports the formats ImageIO can read and write, i.e. TIFF, JPEG and PNG. No
+ * external processes are started.
+ *
+ * With a memory budget, large images are not decoded completely. Instead, a reduced-resolution page of the TIFF is used if there is one, or
+ * only every n-th pixel of every n-th row is decoded, so the decoded raster stays within the budget. The final downscale is done with the
+ * usual high-quality scaling.
+ */
+public class JavaImageBackend implements ImageProcessingBackend {
+
+    private static final int MAX_CACHED_WATERMARKS = 8;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final Map<String, BufferedImage> watermarkRasters =
+            Collections.synchronizedMap(new LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+                private static final long serialVersionUID = -2379403337318893615L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                    return size() > MAX_CACHED_WATERMARKS;
+                }
+            });
+
+    private final long memoryBudget;
+
+    public JavaImageBackend() {
+        this(0);
+    }
+
+    /**
+     * @param memoryBudget the maximum size in bytes of the decoded raster of a source image, or 0 to always decode the full image
+     */
+    public JavaImageBackend(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    @Override
+    public int[] getImageDimensions(Path image) throws ImageProcessingException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(image.toFile())) {
+            ImageReader reader = getReader(iis, image);
+            try {
+                reader.setInput(iis, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            throw new ImageProcessingException("Error reading image dimensions of " + image.getFileName(), e);
+        }
+    }
+
+    @Override
+    public void resize(Path source, Path target, int size) throws ImageProcessingException {
+        BufferedImage image = readOriented(source, size);
+        write(image, target);
+    }
+
+    @Override
+    public void scale(Path source, Path target, int percent) throws ImageProcessingException {
+        BufferedImage image = read(source);
+        int width = Math.max(1, image.getWidth() * percent / 100);
+        int height = Math.max(1, image.getHeight() * percent / 100);
+        write(scaleImage(image, width, height), target);
+    }
+
+    @Override
+    public void composite(Path canvas, Path watermark, WatermarkDescription watermarkDescription) throws ImageProcessingException {
+        BufferedImage canvasImage = read(canvas);
+        drawWatermark(canvasImage, read(watermark), watermarkDescription);
+        write(canvasImage, canvas);
+    }
+
+    @Override
+    public void renderText(WatermarkDescription wd, Path target) throws ImageProcessingException {
+        int[] box = parseGeometry(wd.getBoxSize());
+        BufferedImage image = new BufferedImage(box[0], box[1], BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            // like ImageMagick's caption:, use the largest font size that fits into the box
+            Font baseFont = new Font(wd.getFont().replace('-', ' '), Font.BOLD, 12);
+            List<String> lines = null;
+            FontMetrics metrics = null;
+            // smaller boxes than the minimum font size still get one attempt with the height of the box
+            for (int fontSize = box[1]; fontSize >= Math.min(6, box[1]); fontSize--) {
+                metrics = g.getFontMetrics(baseFont.deriveFont((float) fontSize));
+                lines = wrapText(wd.getText(), metrics, box[0]);
+                if (lines != null && lines.size() * metrics.getHeight() <= box[1]) {
+                    break;
+                }
+            }
+            if (lines == null) {
+                lines = List.of(wd.getText());
+            }
+            g.setFont(metrics.getFont());
+            int y = (box[1] - lines.size() * metrics.getHeight()) / 2 + metrics.getAscent();
+            for (String line : lines) {
+                int x = (box[0] - metrics.stringWidth(line)) / 2;
+                // a simple relief instead of ImageMagick's -shade: dark lower right edge, light upper left edge
+                g.setColor(new Color(0, 0, 0, 160));
+                g.drawString(line, x + 2, y + 2);
+                g.setColor(new Color(255, 255, 255, 200));
+                g.drawString(line, x - 1, y - 1);
+                g.setColor(new Color(128, 128, 128, 220));
+                g.drawString(line, x, y);
+                y += metrics.getHeight();
+            }
+        } finally {
+            g.dispose();
+        }
+        write(image, target);
+    }
+
+    @Override
+    public void resizeAndWatermark(Path source, Path target, int size, List<WatermarkDescription> watermarkDescriptions,
+            List<int[]> watermarkDimensions) throws ImageProcessingException {
+        BufferedImage canvas = readOriented(source, size);
+        for (int i = 0; i < watermarkDescriptions.size(); i++) {
+            WatermarkDescription wd = watermarkDescriptions.get(i);
+            int scaleFactor = ImageResizeAndWatermarkPlugin.getWatermarkScaleFactor(new int[] { canvas.getWidth(), canvas.getHeight() },
+                    watermarkDimensions.get(i));
+            drawWatermark(canvas, getScaledWatermark(wd.getImagePath(), scaleFactor), wd);
+        }
+        write(canvas, target);
+    }
+
+    @Override
+    public void resizeCascade(Path source, List<Derivative> derivatives, List<WatermarkDescription> watermarkDescriptions,
+            List<int[]> watermarkDimensions) throws ImageProcessingException {
+        BufferedImage image = readOriented(source, derivatives.get(0).getSize());
+        for (int d = 0; d < derivatives.size(); d++) {
+            Derivative derivative = derivatives.get(d);
+            int[] scaled = ImageResizeAndWatermarkPlugin.calculateResizedDimensions(image.getWidth(), image.getHeight(), null, derivative.getSize());
+            image = scaleImage(image, scaled[0], scaled[1]);
+            if (!derivative.isWatermark() || watermarkDescriptions.isEmpty()) {
+                write(image, derivative);
+                continue;
+            }
+            // the next derivative is scaled from the image without watermarks
+            BufferedImage canvas = d < derivatives.size() - 1 ? copy(image) : image;
+            for (int i = 0; i < watermarkDescriptions.size(); i++) {
+                WatermarkDescription wd = watermarkDescriptions.get(i);
+                int scaleFactor = ImageResizeAndWatermarkPlugin.getWatermarkScaleFactor(new int[] { canvas.getWidth(), canvas.getHeight() },
+                        watermarkDimensions.get(i));
+                drawWatermark(canvas, getScaledWatermark(wd.getImagePath(), scaleFactor), wd);
+            }
+            write(canvas, derivative);
+        }
+    }
+
+    private static void write(BufferedImage image, Derivative derivative) throws ImageProcessingException {
+        if (derivative.getPyramidTiff() == null) {
+            write(image, derivative.getTarget());
+        } else {
+            writePyramidTiff(image, derivative.getTarget(), derivative.getPyramidTiff());
+        }
+    }
+
+    @Override
+    public void encodePyramidTiff(Path source, Path target, PyramidTiff pyramidTiff) throws ImageProcessingException {
+        writePyramidTiff(read(source), target, pyramidTiff);
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        return new BufferedImage(image.getColorModel(), image.copyData(null), image.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Returns the watermark raster scaled to the given percentage. Pages of the same size share one raster.
+     */
+    private BufferedImage getScaledWatermark(Path watermarkPath, int scaleFactor) throws ImageProcessingException {
+        String key = watermarkPath.toAbsolutePath() + "@" + Math.min(scaleFactor, 100);
+        BufferedImage watermark = watermarkRasters.get(key);
+        if (watermark == null) {
+            watermark = read(watermarkPath);
+            if (scaleFactor < 100) {
+                watermark = scaleImage(watermark, Math.max(1, watermark.getWidth() * scaleFactor / 100),
+                        Math.max(1, watermark.getHeight() * scaleFactor / 100));
+            }
+            watermarkRasters.put(key, watermark);
+        }
+        return watermark;
+    }
+
+    /**
+     * In large image mode the raster is subsampled to the memory budget. Reduced-resolution TIFF pages are not taken into account, so the
+     * estimate is on the safe side.
+     */
+    @Override
+    public long estimateMemory(Path source, int width, int height, int size) {
+        if (memoryBudget <= 0) {
+            return ImageProcessingBackend.super.estimateMemory(source, width, height, size);
+        }
+        int subsampling = calculateSubsampling(width, height, size, memoryBudget);
+        return (long) ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling) * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Reads an image, scales it so that the longest side is at most size pixels and applies the orientation stored in the TIFF or EXIF
+     * metadata. The result has no orientation tag anymore.
+     */
+    private BufferedImage readOriented(Path source, int size) throws ImageProcessingException {
+        int orientation = 1;
+        try {
+            int[] header = ImageHeaderReader.read(source);
+            if (header != null) {
+                orientation = header[2];
+            }
+        } catch (IOException e) {
+            throw new ImageProcessingException("Error converting image " + source.getFileName(), e);
+        }
+        try (ImageInputStream iis = ImageIO.createImageInputStream(source.toFile())) {
+            ImageReader reader = getReader(iis, source);
+            try {
+                BufferedImage image;
+                int[] scaled;
+                if (memoryBudget > 0) {
+                    // the reduced-resolution pages of a TIFF can only be found when seeking backwards is allowed
+                    reader.setInput(iis, false, true);
+                    // the target size is based on the full image, the reduced raster may be off by a pixel due to rounding
+                    scaled = ImageResizeAndWatermarkPlugin.calculateResizedDimensions(reader.getWidth(0), reader.getHeight(0), null, size);
+                    image = readReduced(reader, size);
+                } else {
+                    reader.setInput(iis, true, true);
+                    image = reader.read(0);
+                    scaled = ImageResizeAndWatermarkPlugin.calculateResizedDimensions(image.getWidth(), image.getHeight(), null, size);
+                }
+                // the longest side stays the longest side when rotating, so it is cheaper to scale first
+                return orient(scaleImage(image, scaled[0], scaled[1]), orientation);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            throw new ImageProcessingException("Error converting image " + source.getFileName(), e);
+        }
+    }
+
+    /**
+     * Decodes the image at a reduced resolution that still has at least the requested size, keeping the decoded raster within the memory
+     * budget if possible.
+     */
+    private BufferedImage readReduced(ImageReader reader, int size) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int imageIndex = "tif".equalsIgnoreCase(reader.getFormatName()) ? findReducedResolutionPage(reader, width, height, size) : 0;
+        if (imageIndex > 0) {
+            width = reader.getWidth(imageIndex);
+            height = reader.getHeight(imageIndex);
+        }
+        int subsampling = calculateSubsampling(width, height, size, memoryBudget);
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        return reader.read(imageIndex, param);
+    }
+
+    /**
+     * Looks for a smaller page with the same aspect ratio, as written by pyramidal TIFF writers, whose longest side is still at least size.
+     *
+     * @return the index of the smallest suitable page, or 0
+     */
+    private static int findReducedResolutionPage(ImageReader reader, int width, int height, int size) throws IOException {
+        int numImages = reader.getNumImages(true);
+        int best = 0;
+        long bestPixels = (long) width * height;
+        for (int i = 1; i < numImages; i++) {
+            int pageWidth = reader.getWidth(i);
+            int pageHeight = reader.getHeight(i);
+            boolean sameAspectRatio = Math.abs((double) pageWidth / pageHeight - (double) width / height) < 0.01 * width / height;
+            if (sameAspectRatio && Math.max(pageWidth, pageHeight) >= size && (long) pageWidth * pageHeight < bestPixels) {
+                best = i;
+                bestPixels = (long) pageWidth * pageHeight;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Calculates the smallest subsampling factor that keeps the decoded raster within the memory budget. The factor never reduces the image
+     * below the target size, so the final downscale always has enough pixels.
+     */
+    static int calculateSubsampling(int width, int height, int size, long memoryBudget) {
+        int[] target = ImageResizeAndWatermarkPlugin.calculateResizedDimensions(width, height, null, size);
+        int maxSubsampling = Math.max(1, Math.min(width / target[0], height / target[1]));
+        int subsampling = 1;
+        while (subsampling < maxSubsampling
+                && (long) ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling) * BYTES_PER_PIXEL > memoryBudget) {
+            subsampling++;
+        }
+        return subsampling;
+    }
+
+    private static BufferedImage read(Path image) throws ImageProcessingException {
+        try {
+            BufferedImage result = ImageIO.read(image.toFile());
+            if (result == null) {
+                throw new ImageProcessingException("Unsupported image format: " + image.getFileName());
+            }
+            return result;
+        } catch (IOException e) {
+            throw new ImageProcessingException("Error reading image " + image.getFileName(), e);
+        }
+    }
+
+    private static ImageReader getReader(ImageInputStream iis, Path image) throws ImageProcessingException {
+        if (iis == null) {
+            throw new ImageProcessingException("Could not open image " + image.getFileName());
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            throw new ImageProcessingException("Unsupported image format: " + image.getFileName());
+        }
+        return readers.next();
+    }
+
+    static void write(BufferedImage image, Path target) throws ImageProcessingException {
+        String format = getFormatName(target);
+        if (format == null) {
+            throw new ImageProcessingException("Unsupported output format: " + target.getFileName());
+        }
+        if ("jpeg".equals(format) && image.getColorModel().hasAlpha()) {
+            image = convert(image, BufferedImage.TYPE_INT_RGB);
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new ImageProcessingException("Unsupported output format: " + target.getFileName());
+        }
+        ImageWriter writer = writers.next();
+        try {
+            Files.deleteIfExists(target);
+            try (ImageOutputStream ios = ImageIO.createImageOutputStream(target.toFile())) {
+                writer.setOutput(ios);
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                if ("jpeg".equals(format)) {
+                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                    param.setCompressionQuality(0.9f);
+                }
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+        } catch (IOException e) {
+            throw new ImageProcessingException("Error writing image " + target.getFileName(), e);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Writes an image as tiled TIFF, followed by reduced-resolution pages of half the size of the previous page until a page fits into one
+     * tile. The reduced-resolution pages are marked with NewSubfileType 1, so readers take the first page as the image.
+     */
+    static void writePyramidTiff(BufferedImage image, Path target, PyramidTiff pyramidTiff) throws ImageProcessingException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tiff");
+        if (!writers.hasNext()) {
+            throw new ImageProcessingException("No TIFF writer available to write " + target.getFileName());
+        }
+        if (image.getColorModel().hasAlpha() && "jpeg".equals(pyramidTiff.getCompression())) {
+            image = convert(image, BufferedImage.TYPE_INT_RGB);
+        }
+        ImageWriter writer = writers.next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setTiling(pyramidTiff.getTileSize(), pyramidTiff.getTileSize(), 0, 0);
+            if ("none".equals(pyramidTiff.getCompression())) {
+                param.setCompressionMode(ImageWriteParam.MODE_DISABLED);
+            } else {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionType(getTiffCompressionType(pyramidTiff.getCompression()));
+                if ("jpeg".equals(pyramidTiff.getCompression())) {
+                    param.setCompressionQuality(pyramidTiff.getQuality() / 100f);
+                }
+            }
+            Files.deleteIfExists(target);
+            try (ImageOutputStream ios = ImageIO.createImageOutputStream(target.toFile())) {
+                writer.setOutput(ios);
+                writer.prepareWriteSequence(null);
+                BufferedImage level = image;
+                boolean reduced = false;
+                while (true) {
+                    IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(level), param);
+                    if (reduced) {
+                        TIFFDirectory directory = TIFFDirectory.createFromMetadata(metadata);
+                        directory.addTIFFField(new TIFFField(BaselineTIFFTagSet.getInstance().getTag(BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE),
+                                TIFFTag.TIFF_LONG, 1, new long[] { BaselineTIFFTagSet.NEW_SUBFILE_TYPE_REDUCED_RESOLUTION }));
+                        metadata = directory.getAsMetadata();
+                    }
+                    writer.writeToSequence(new IIOImage(level, null, metadata), param);
+                    if (level.getWidth() <= pyramidTiff.getTileSize() && level.getHeight() <= pyramidTiff.getTileSize()) {
+                        break;
+                    }
+                    level = scaleImage(level, Math.max(1, level.getWidth() / 2), Math.max(1, level.getHeight() / 2));
+                    reduced = true;
+                }
+                writer.endWriteSequence();
+            }
+        } catch (IOException e) {
+            throw new ImageProcessingException("Error writing image " + target.getFileName(), e);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static String getTiffCompressionType(String compression) {
+        switch (compression) {
+            case "deflate":
+                return "Deflate";
+            case "jpeg":
+                return "JPEG";
+            default:
+                return "LZW";
+        }
+    }
+
+    static String getFormatName(Path file) {
+        String filename = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        String extension = filename.substring(filename.lastIndexOf('.') + 1);
+        switch (extension) {
+            case "tif":
+            case "tiff":
+                return "tiff";
+            case "jpg":
+            case "jpeg":
+                return "jpeg";
+            case "png":
+                return "png";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Scales an image with good quality. Large reductions are done in several halving steps, because a single bilinear step would skip most of
+     * the source pixels.
+     */
+    static BufferedImage scaleImage(BufferedImage image, int width, int height) {
+        if (image.getWidth() == width && image.getHeight() == height) {
+            return image;
+        }
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+                : image.getColorModel().getNumColorComponents() == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = image;
+        int currentWidth = image.getWidth();
+        int currentHeight = image.getHeight();
+        do {
+            if (currentWidth / 2 >= width && currentHeight / 2 >= height) {
+                currentWidth /= 2;
+                currentHeight /= 2;
+            } else {
+                currentWidth = width;
+                currentHeight = height;
+            }
+            BufferedImage next = new BufferedImage(currentWidth, currentHeight, type);
+            Graphics2D g = next.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        currentWidth == width ? RenderingHints.VALUE_INTERPOLATION_BICUBIC : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            } finally {
+                g.dispose();
+            }
+            current = next;
+        } while (currentWidth != width || currentHeight != height);
+        return current;
+    }
+
+    private static BufferedImage convert(BufferedImage image, int type) {
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g = result.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+
+    /**
+     * Draws the watermark with 50% opacity, positioned like ImageMagick's -gravity and -geometry options.
+     */
+    static void drawWatermark(BufferedImage canvas, BufferedImage watermark, WatermarkDescription wd) {
+        String location = wd.getLocation() == null ? "southeast" : wd.getLocation().toLowerCase(Locale.ROOT);
+        int x;
+        if (location.endsWith("west")) {
+            x = wd.getXDistance();
+        } else if (location.endsWith("east")) {
+            x = canvas.getWidth() - watermark.getWidth() - wd.getXDistance();
+        } else {
+            x = (canvas.getWidth() - watermark.getWidth()) / 2 + wd.getXDistance();
+        }
+        int y;
+        if (location.startsWith("north")) {
+            y = wd.getYDistance();
+        } else if (location.startsWith("south")) {
+            y = canvas.getHeight() - watermark.getHeight() - wd.getYDistance();
+        } else {
+            y = (canvas.getHeight() - watermark.getHeight()) / 2 + wd.getYDistance();
+        }
+        Graphics2D g = canvas.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
+            g.drawImage(watermark, x, y, null);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Rotates and flips the image according to the TIFF/EXIF orientation value.
+     */
+    static BufferedImage orient(BufferedImage image, int orientation) {
+        if (orientation < 2 || orientation > 8) {
+            return image;
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        AffineTransform transform;
+        switch (orientation) {
+            case 2:
+                transform = new AffineTransform(-1, 0, 0, 1, w, 0);
+                break;
+            case 3:
+                transform = new AffineTransform(-1, 0, 0, -1, w, h);
+                break;
+            case 4:
+                transform = new AffineTransform(1, 0, 0, -1, 0, h);
+                break;
+            case 5:
+                transform = new AffineTransform(0, 1, 1, 0, 0, 0);
+                break;
+            case 6:
+                transform = new AffineTransform(0, 1, -1, 0, h, 0);
+                break;
+            case 7:
+                transform = new AffineTransform(0, -1, -1, 0, h, w);
+                break;
+            default:
+                transform = new AffineTransform(0, -1, 1, 0, 0, w);
+                break;
+        }
+        boolean swap = orientation >= 5;
+        int type = image.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_RGB : image.getType();
+        BufferedImage result = new BufferedImage(swap ? h : w, swap ? w : h, type);
+        Graphics2D g = result.createGraphics();
+        try {
+            g.drawImage(image, transform, null);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+
+    private static List<String> wrapText(String text, FontMetrics metrics, int maxWidth) {
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        for (String word : text.split("\\s+")) {
+            if (metrics.stringWidth(word) > maxWidth) {
+                return null;
+            }
+            String candidate = line.length() == 0 ? word : line + " " + word;
+            if (metrics.stringWidth(candidate) > maxWidth) {
+                lines.add(line.toString());
+                line = new StringBuilder(word);
+            } else {
+                line = new StringBuilder(candidate);
+            }
+        }
+        lines.add(line.toString());
+        return lines;
+    }
+
+    private static int[] parseGeometry(String geometry) throws ImageProcessingException {
+        String[] split = geometry.toLowerCase(Locale.ROOT).split("x");
+        int[] box;
+        try {
+            box = new int[] { Integer.parseInt(split[0].trim()), Integer.parseInt(split[1].trim()) };
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new ImageProcessingException("Invalid box size for text watermark: " + geometry, e);
+        }
+        if (box[0] <= 0 || box[1] <= 0) {
+            throw new ImageProcessingException("Invalid box size for text watermark, width and height must be positive: " + geometry);
+        }
+        return box;
+    }
+}
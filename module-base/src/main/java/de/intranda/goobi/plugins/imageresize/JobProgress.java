@@ -0,0 +1,110 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of the image processing of one step: whether it is still waiting for a free job slot, how many pages are done and when it is
+ * expected to finish. Updated by the worker threads of the run and read by {@link ImageProcessingJobs}, JMX and the user interface.
+ */
+public class JobProgress {
+
+    private final int processId;
+    private final int stepId;
+    private final AtomicInteger pagesDone = new AtomicInteger();
+    private volatile int pagesTotal = -1;
+    private volatile boolean running;
+    private volatile long startNanos;
+    private final AtomicLong lastReportNanos = new AtomicLong();
+
+    public JobProgress(int processId, int stepId) {
+        this.processId = processId;
+        this.stepId = stepId;
+    }
+
+    public int getProcessId() {
+        return processId;
+    }
+
+    public int getStepId() {
+        return stepId;
+    }
+
+    /**
+     * Marks the job as started. The ETA is calculated from the pages processed since then.
+     */
+    void start() {
+        startNanos = System.nanoTime();
+        lastReportNanos.set(startNanos);
+        running = true;
+    }
+
+    /**
+     * Returns false while the job is waiting for a free job slot.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Sets the number of pages to process, once the changed pages are known.
+     */
+    void setPagesTotal(int pagesTotal) {
+        this.pagesTotal = pagesTotal;
+    }
+
+    /**
+     * The number of pages to process, or -1 if it is not known yet.
+     */
+    public int getPagesTotal() {
+        return pagesTotal;
+    }
+
+    void pageDone() {
+        pagesDone.incrementAndGet();
+    }
+
+    public int getPagesDone() {
+        return pagesDone.get();
+    }
+
+    /**
+     * Returns true if the progress is to be reported again, at most once per interval since the start or the last report. Of several threads
+     * calling it at the same time, only one gets true.
+     */
+    boolean isReportDue(long intervalNanos) {
+        long last = lastReportNanos.get();
+        long now = System.nanoTime();
+        return now - last >= intervalNanos && lastReportNanos.compareAndSet(last, now);
+    }
+
+    /**
+     * Estimates the remaining time from the average time per page so far.
+     *
+     * @return the remaining seconds, or -1 if no page is done yet
+     */
+    public long getEtaSeconds() {
+        int done = pagesDone.get();
+        int total = pagesTotal;
+        if (!running || done == 0 || total < 0) {
+            return -1;
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        return elapsedNanos / done * Math.max(0, total - done) / 1000000000L;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("process ").append(processId).append(", step ").append(stepId).append(": ");
+        if (!running) {
+            return sb.append("queued").toString();
+        }
+        sb.append(pagesDone.get()).append('/').append(pagesTotal < 0 ? "?" : String.valueOf(pagesTotal)).append(" pages");
+        long eta = getEtaSeconds();
+        if (eta >= 0) {
+            sb.append(", ETA ").append(eta).append(" s");
+        }
+        return sb.toString();
+    }
+}
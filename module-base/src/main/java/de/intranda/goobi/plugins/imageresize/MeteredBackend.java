@@ -0,0 +1,114 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Wraps a backend and records the duration and the file sizes of every operation in {@link StageMetrics}. The stages are named after the
+ * operations: identify, resize, scale, composite, renderText, resizeAndWatermark, resizeCascade and encodePyramidTiff.
+ */
+public class MeteredBackend implements ImageProcessingBackend {
+
+    private final ImageProcessingBackend backend;
+    private final StageMetrics metrics;
+
+    public MeteredBackend(ImageProcessingBackend backend, StageMetrics metrics) {
+        this.backend = backend;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int[] getImageDimensions(Path image) throws ImageProcessingException, InterruptedException {
+        long start = System.nanoTime();
+        int[] dimensions = backend.getImageDimensions(image);
+        metrics.record("identify", start, 0, 0);
+        return dimensions;
+    }
+
+    @Override
+    public void resize(Path source, Path target, int size) throws ImageProcessingException, InterruptedException {
+        long start = System.nanoTime();
+        backend.resize(source, target, size);
+        metrics.record("resize", start, size(source), size(target));
+    }
+
+    @Override
+    public void scale(Path source, Path target, int percent) throws ImageProcessingException, InterruptedException {
+        long start = System.nanoTime();
+        backend.scale(source, target, percent);
+        metrics.record("scale", start, size(source), size(target));
+    }
+
+    @Override
+    public void composite(Path canvas, Path watermark, WatermarkDescription watermarkDescription)
+            throws ImageProcessingException, InterruptedException {
+        long bytesIn = size(canvas) + size(watermark);
+        long start = System.nanoTime();
+        backend.composite(canvas, watermark, watermarkDescription);
+        metrics.record("composite", start, bytesIn, size(canvas));
+    }
+
+    @Override
+    public void renderText(WatermarkDescription watermarkDescription, Path target) throws ImageProcessingException, InterruptedException {
+        long start = System.nanoTime();
+        backend.renderText(watermarkDescription, target);
+        metrics.record("renderText", start, 0, size(target));
+    }
+
+    @Override
+    public void resizeAndWatermark(Path source, Path target, int size, List<WatermarkDescription> watermarkDescriptions,
+            List<int[]> watermarkDimensions) throws ImageProcessingException, InterruptedException {
+        long start = System.nanoTime();
+        backend.resizeAndWatermark(source, target, size, watermarkDescriptions, watermarkDimensions);
+        metrics.record("resizeAndWatermark", start, size(source), size(target));
+    }
+
+    @Override
+    public void resizeCascade(Path source, List<Derivative> derivatives, List<WatermarkDescription> watermarkDescriptions,
+            List<int[]> watermarkDimensions) throws ImageProcessingException, InterruptedException {
+        long start = System.nanoTime();
+        backend.resizeCascade(source, derivatives, watermarkDescriptions, watermarkDimensions);
+        long bytesOut = 0;
+        for (Derivative derivative : derivatives) {
+            bytesOut += size(derivative.getTarget());
+        }
+        metrics.record("resizeCascade", start, size(source), bytesOut);
+    }
+
+    @Override
+    public void encodePyramidTiff(Path source, Path target, PyramidTiff pyramidTiff) throws ImageProcessingException, InterruptedException {
+        long start = System.nanoTime();
+        backend.encodePyramidTiff(source, target, pyramidTiff);
+        metrics.record("encodePyramidTiff", start, size(source), size(target));
+    }
+
+    @Override
+    public void checkFeatures(boolean fusedPipeline, boolean pyramidTiff) throws ImageProcessingException {
+        backend.checkFeatures(fusedPipeline, pyramidTiff);
+    }
+
+    @Override
+    public long estimateMemory(Path source, int width, int height, int size) {
+        return backend.estimateMemory(source, width, height, size);
+    }
+
+    @Override
+    public void close() {
+        backend.close();
+    }
+
+    @Override
+    public String getName() {
+        return backend.getName();
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sets the orientation tag of an image to TopLeft (1) in place, as a replacement for <code>exiftool -Orientation=</code>. The file is mapped
+ * into memory and only the two bytes of the tag value are written, so neither the pixel data nor the rest of the file is copied, and no
+ * external process is started. Only the pages of the file holding the header are actually read.
+ *
+ * Supported are TIFF and BigTIFF (first IFD) and JPEG (EXIF segment). For other formats, or for files that store the orientation in a way
+ * that cannot be patched in place, e.g. as XMP property, false is returned, so the caller can fall back to exiftool.
+ */
+public class OrientationNormalizer {
+
+    private static final int TAG_ORIENTATION = 274;
+    private static final int TAG_XMP = 700;
+    private static final int TYPE_SHORT = 3;
+    private static final byte[] XMP_ORIENTATION = "tiff:Orientation".getBytes(StandardCharsets.US_ASCII);
+
+    private OrientationNormalizer() {
+    }
+
+    /**
+     * Sets the orientation of an image to TopLeft, if it has a different one.
+     *
+     * @return true if the image has no other orientation anymore, false if the format is not supported or the orientation could not be reset
+     *         in place
+     */
+    public static boolean normalize(Path image) throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size < 16 || size > Integer.MAX_VALUE) {
+                return false;
+            }
+            MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int b0 = file.get(0) & 0xff;
+            int b1 = file.get(1) & 0xff;
+            boolean patched;
+            if ((b0 == 'I' && b1 == 'I') || (b0 == 'M' && b1 == 'M')) {
+                patched = normalizeTiff(file, 0, (int) size);
+            } else if (b0 == 0xff && b1 == 0xd8) {
+                patched = normalizeJpeg(file);
+            } else {
+                return false;
+            }
+            file.force();
+            return patched;
+        } catch (RuntimeException e) {
+            // truncated or broken header, leave it to exiftool
+            return false;
+        }
+    }
+
+    /**
+     * Patches the orientation in the first IFD of a TIFF structure.
+     *
+     * @param start the position of the TIFF header in the buffer
+     * @param end the end of the TIFF structure, offsets behind it are treated as broken
+     * @return false if the orientation could not be patched
+     */
+    private static boolean normalizeTiff(MappedByteBuffer file, int start, int end) {
+        file.order(file.get(start) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int version = file.getShort(start + 2) & 0xffff;
+        boolean bigTiff = version == 43;
+        if (version != 42 && !bigTiff) {
+            return false;
+        }
+        long ifdOffset = bigTiff ? file.getLong(start + 8) : file.getInt(start + 4) & 0xffffffffL;
+        int countSize = bigTiff ? 8 : 2;
+        int entrySize = bigTiff ? 20 : 12;
+        if (ifdOffset < 8 || start + ifdOffset + countSize > end) {
+            return false;
+        }
+        int ifd = (int) (start + ifdOffset);
+        long entries = bigTiff ? file.getLong(ifd) : file.getShort(ifd) & 0xffff;
+        if (ifd + countSize + entries * entrySize > end) {
+            return false;
+        }
+        int orientationEntry = -1;
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + countSize + i * entrySize;
+            int tag = file.getShort(entry) & 0xffff;
+            if (tag == TAG_ORIENTATION) {
+                orientationEntry = entry;
+            } else if (tag == TAG_XMP && hasXmpOrientation(file, start, end, entry, bigTiff)) {
+                return false;
+            }
+        }
+        if (orientationEntry < 0) {
+            return true;
+        }
+        if ((file.getShort(orientationEntry + 2) & 0xffff) != TYPE_SHORT) {
+            return false;
+        }
+        int valueOffset = orientationEntry + (bigTiff ? 12 : 8);
+        if (file.getShort(valueOffset) != 1) {
+            file.putShort(valueOffset, (short) 1);
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the XMP packet referenced by an IFD entry contains an orientation, which would override the patched tag in some viewers.
+     */
+    private static boolean hasXmpOrientation(MappedByteBuffer file, int start, int end, int entry, boolean bigTiff) {
+        long count = bigTiff ? file.getLong(entry + 4) : file.getInt(entry + 4) & 0xffffffffL;
+        int inlineSize = bigTiff ? 8 : 4;
+        long offset;
+        if (count <= inlineSize) {
+            offset = entry + (bigTiff ? 12 : 8) - start;
+        } else {
+            offset = bigTiff ? file.getLong(entry + 12) : file.getInt(entry + 8) & 0xffffffffL;
+        }
+        if (offset < 0 || start + offset + count > end) {
+            // cannot tell, so do not claim the orientation is gone
+            return true;
+        }
+        return contains(file, (int) (start + offset), (int) (start + offset + count), XMP_ORIENTATION);
+    }
+
+    private static boolean normalizeJpeg(MappedByteBuffer file) {
+        file.order(ByteOrder.BIG_ENDIAN);
+        int position = 2;
+        int size = file.limit();
+        boolean patched = true;
+        while (position + 4 <= size) {
+            if ((file.get(position) & 0xff) != 0xff) {
+                return false;
+            }
+            int type = file.get(position + 1) & 0xff;
+            if (type == 0xff) {
+                // fill byte
+                position++;
+                continue;
+            }
+            if (type == 0xd9 || type == 0xda) {
+                // the metadata segments are all in front of the scan
+                return patched;
+            }
+            int length = file.getShort(position + 2) & 0xffff;
+            int segment = position + 4;
+            int segmentEnd = position + 2 + length;
+            if (length < 2 || segmentEnd > size) {
+                return false;
+            }
+            if (type == 0xe1 && startsWith(file, segment, segmentEnd, "Exif\0\0")) {
+                patched &= normalizeTiff(file, segment + 6, segmentEnd);
+                file.order(ByteOrder.BIG_ENDIAN);
+            } else if (type == 0xe1 && startsWith(file, segment, segmentEnd, "http://ns.adobe.com/xap/1.0/")
+                    && contains(file, segment, segmentEnd, XMP_ORIENTATION)) {
+                patched = false;
+            }
+            position = segmentEnd;
+        }
+        return false;
+    }
+
+    private static boolean startsWith(MappedByteBuffer file, int start, int end, String prefix) {
+        if (start + prefix.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (file.get(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(MappedByteBuffer file, int start, int end, byte[] pattern) {
+        for (int i = start; i + pattern.length <= end; i++) {
+            int j = 0;
+            while (j < pattern.length && file.get(i + j) == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,64 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.nio.file.Path;
+
+/**
+ * One derivative that is created for every page: the folder it is published to, its maximum size, whether it gets the watermarks and whether
+ * it is written as pyramidal TIFF.
+ */
+public class OutputTarget {
+
+    private final Path destDir;
+    private final int size;
+    private final boolean watermark;
+    private final PyramidTiff pyramidTiff;
+
+    /**
+     * @param destDir the folder the derivatives are published to
+     * @param size the maximum size of the longest side
+     * @param watermark true if the watermarks are rendered into the derivatives
+     */
+    public OutputTarget(Path destDir, int size, boolean watermark) {
+        this(destDir, size, watermark, null);
+    }
+
+    /**
+     * @param pyramidTiff the encoding of the derivatives, or null to write them in the format of the source image
+     */
+    public OutputTarget(Path destDir, int size, boolean watermark, PyramidTiff pyramidTiff) {
+        this.destDir = destDir;
+        this.size = size;
+        this.watermark = watermark;
+        this.pyramidTiff = pyramidTiff;
+    }
+
+    public Path getDestDir() {
+        return destDir;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isWatermark() {
+        return watermark;
+    }
+
+    public PyramidTiff getPyramidTiff() {
+        return pyramidTiff;
+    }
+
+    /**
+     * Returns the name of the derivative of a source image. Pyramidal TIFFs always get the extension .tif.
+     */
+    public String getFileName(String sourceFileName) {
+        return pyramidTiff == null ? sourceFileName : PyramidTiff.getFileName(sourceFileName);
+    }
+
+    /**
+     * Returns the published derivative of a source image.
+     */
+    public Path getDerivative(Path source) {
+        return destDir.resolve(getFileName(source.getFileName().toString()));
+    }
+}
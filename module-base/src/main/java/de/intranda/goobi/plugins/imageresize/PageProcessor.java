@@ -0,0 +1,240 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * The resize and watermark chain for a single page: the page is processed in the staging area and published to the destination folder when it
+ * is finished. Instances are shared by all worker threads of a run, in the step as well as in a {@link DistributedWorker}. Every page waits
+ * for admission by the {@link ImageProcessingScheduler} of the JVM before it is processed.
+ *
+ * If there are several output targets, they are created from a single decode of the page: the largest target is created from the source and
+ * every smaller target is scaled down from the previous, larger one before its watermarks were rendered. Targets in pyramidal TIFF format are
+ * written directly in the fused pipeline and encoded from the finished image otherwise.
+ *
+ * Pages with the same content as an already processed page can be published as hard links to its results instead of being processed again.
+ *
+ * Pages that fail with a retryable error, e.g. because a command was killed after its timeout, are processed again after a delay that doubles
+ * with every attempt.
+ */
+@Log4j2
+public class PageProcessor implements AutoCloseable {
+
+    private static final String UNENCODED_PREFIX = "unencoded-";
+
+    private final ImageProcessingBackend backend;
+    private final ImageDimensionProbe dimensionProbe;
+    private final WatermarkCache watermarkCache;
+    private final List<OutputTarget> targets;
+    private final List<StagingArea> stagingAreas = new ArrayList<>();
+    private final StageMetrics stageMetrics;
+    private final List<WatermarkDescription> watermarkDescriptions;
+    private final boolean fused;
+    private final Object owner;
+    private List<int[]> watermarkDimensions = Collections.emptyList();
+    private int retries;
+    private long retryDelay;
+
+    /**
+     * Creates a staging area in the scratch folder for every target.
+     *
+     * @param targets the output targets, in any order
+     * @param owner the owner of the pages for the scheduler, e.g. the process
+     */
+    public PageProcessor(ImageProcessingBackend backend, ImageDimensionProbe dimensionProbe, WatermarkCache watermarkCache, Path scratchDir,
+            List<OutputTarget> targets, StageMetrics stageMetrics, List<WatermarkDescription> watermarkDescriptions, boolean fused, Object owner)
+            throws IOException {
+        this.backend = backend;
+        this.dimensionProbe = dimensionProbe;
+        this.watermarkCache = watermarkCache;
+        this.targets = new ArrayList<>(targets);
+        this.targets.sort(Comparator.comparingInt(OutputTarget::getSize).reversed());
+        this.stageMetrics = stageMetrics;
+        this.watermarkDescriptions = watermarkDescriptions;
+        this.fused = fused;
+        this.owner = owner;
+        try {
+            for (OutputTarget target : this.targets) {
+                stagingAreas.add(new StagingArea(scratchDir, target.getDestDir()));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets how often a page is processed again after a retryable error.
+     *
+     * @param retries the maximum number of additional attempts
+     * @param retryDelay the delay in milliseconds before the first retry, doubled for every further retry
+     */
+    public void setRetries(int retries, long retryDelay) {
+        this.retries = retries;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Checks that the backend has the programs for the configured features and reads everything that is the same for all pages. In the fused
+     * pipeline these are the dimensions of the watermarks, which are only read once. Must be called before the first page is processed.
+     */
+    public void prepare() throws ImageProcessingException, InterruptedException {
+        boolean pyramidTiff = false;
+        for (OutputTarget target : targets) {
+            pyramidTiff |= target.getPyramidTiff() != null;
+        }
+        backend.checkFeatures(fused, pyramidTiff);
+        if (fused) {
+            List<int[]> dimensions = new ArrayList<>();
+            for (WatermarkDescription watermarkDescription : watermarkDescriptions) {
+                dimensions.add(watermarkCache.getDimensions(watermarkDescription.getImagePath()));
+            }
+            watermarkDimensions = dimensions;
+        }
+    }
+
+    /**
+     * Resizes and watermarks a page and publishes it to the destination folders.
+     */
+    public void process(Path source) throws ImageProcessingException, InterruptedException, IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                processOnce(source);
+                return;
+            } catch (ImageProcessingException e) {
+                if (!e.isRetryable() || attempt > retries) {
+                    if (attempt > 1) {
+                        throw new ImageProcessingException(e.getMessage() + " (failed " + attempt + " times)", e);
+                    }
+                    throw e;
+                }
+                long delay = retryDelay << Math.min(attempt - 1, 16);
+                log.warn("Processing {} failed, retrying in {} ms: {}", source.getFileName(), delay, e.getMessage());
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    private void processOnce(Path source) throws ImageProcessingException, InterruptedException, IOException {
+        String fileName = source.getFileName().toString();
+        List<Path> stagedImages = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            stagedImages.add(stagingAreas.get(i).getStagingPath(Paths.get(targets.get(i).getFileName(fileName))));
+        }
+        int[] dimensions = dimensionProbe.getImageDimensions(source);
+        long memory = backend.estimateMemory(source, dimensions[0], dimensions[1], targets.get(0).getSize());
+        try (ImageProcessingScheduler.Permit permit =
+                ImageProcessingScheduler.getInstance().acquire(owner, (long) dimensions[0] * dimensions[1], memory)) {
+            if (targets.size() == 1 && targets.get(0).getPyramidTiff() == null) {
+                processSingleTarget(source, stagedImages.get(0), targets.get(0));
+            } else if (fused) {
+                List<ImageProcessingBackend.Derivative> derivatives = new ArrayList<>();
+                for (int i = 0; i < targets.size(); i++) {
+                    OutputTarget target = targets.get(i);
+                    derivatives.add(new ImageProcessingBackend.Derivative(stagedImages.get(i), target.getSize(), target.isWatermark(),
+                            target.getPyramidTiff()));
+                }
+                backend.resizeCascade(source, derivatives, watermarkDescriptions, watermarkDimensions);
+            } else {
+                // pyramidal TIFFs are resized and watermarked in the format of the source and only encoded at the end
+                List<Path> canvasImages = new ArrayList<>();
+                for (int i = 0; i < targets.size(); i++) {
+                    canvasImages.add(targets.get(i).getPyramidTiff() == null ? stagedImages.get(i)
+                            : stagingAreas.get(i).getStagingPath(Paths.get(UNENCODED_PREFIX + fileName)));
+                }
+                // all targets are scaled down before the first watermark is rendered, so the smaller targets are made from clean images
+                Path previous = source;
+                for (int i = 0; i < targets.size(); i++) {
+                    backend.resize(previous, canvasImages.get(i), targets.get(i).getSize());
+                    previous = canvasImages.get(i);
+                }
+                for (int i = 0; i < targets.size(); i++) {
+                    if (targets.get(i).isWatermark()) {
+                        for (WatermarkDescription watermarkDescription : watermarkDescriptions) {
+                            renderWatermarkToImage(canvasImages.get(i), watermarkDescription);
+                        }
+                    }
+                }
+                for (int i = 0; i < targets.size(); i++) {
+                    if (targets.get(i).getPyramidTiff() != null) {
+                        backend.encodePyramidTiff(canvasImages.get(i), stagedImages.get(i), targets.get(i).getPyramidTiff());
+                        Files.delete(canvasImages.get(i));
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < stagedImages.size(); i++) {
+            long stagedSize = Files.size(stagedImages.get(i));
+            long start = System.nanoTime();
+            stagingAreas.get(i).publish(stagedImages.get(i));
+            stageMetrics.record("publish", start, 0, stagedSize);
+        }
+    }
+
+    /**
+     * Publishes the results of an already processed page under the name of another page with identical content, as hard links where the file
+     * system supports them.
+     *
+     * @param source the processed page
+     * @param duplicate the page with the same content and configuration
+     */
+    public void publishDuplicate(Path source, Path duplicate) throws IOException {
+        String fileName = source.getFileName().toString();
+        String duplicateName = duplicate.getFileName().toString();
+        for (int i = 0; i < targets.size(); i++) {
+            OutputTarget target = targets.get(i);
+            long start = System.nanoTime();
+            stagingAreas.get(i).publishLink(target.getDestDir().resolve(target.getFileName(fileName)), target.getFileName(duplicateName));
+            stageMetrics.record("link", start, 0, 0);
+        }
+    }
+
+    private void processSingleTarget(Path source, Path stagedImage, OutputTarget target)
+            throws ImageProcessingException, InterruptedException {
+        List<WatermarkDescription> targetWatermarks = target.isWatermark() ? watermarkDescriptions : Collections.emptyList();
+        if (fused) {
+            // the source is decoded once, all watermarks are composited onto the resized canvas and the result is encoded once
+            backend.resizeAndWatermark(source, stagedImage, target.getSize(), targetWatermarks,
+                    target.isWatermark() ? watermarkDimensions : Collections.emptyList());
+        } else {
+            backend.resize(source, stagedImage, target.getSize());
+            for (WatermarkDescription watermarkDescription : targetWatermarks) {
+                renderWatermarkToImage(stagedImage, watermarkDescription);
+            }
+        }
+    }
+
+    /**
+     * Returns width and height of an image, read from its header if possible.
+     */
+    public int[] getImageDimensions(Path image) throws ImageProcessingException, InterruptedException {
+        return dimensionProbe.getImageDimensions(image);
+    }
+
+    private void renderWatermarkToImage(Path canvasImage, WatermarkDescription wd) throws ImageProcessingException, InterruptedException {
+        int[] canvasDimensions = dimensionProbe.getImageDimensions(canvasImage);
+        int[] dimensions = watermarkCache.getDimensions(wd.getImagePath());
+        int scaleFactor = ImageResizeAndWatermarkPlugin.getWatermarkScaleFactor(canvasDimensions, dimensions);
+        try (WatermarkCache.ScaledWatermark watermark = watermarkCache.acquire(wd.getImagePath(), scaleFactor)) {
+            backend.composite(canvasImage, watermark.getPath(), wd);
+        }
+    }
+
+    /**
+     * Deletes the staging areas including all files that were not published.
+     */
+    @Override
+    public void close() {
+        for (StagingArea stagingArea : stagingAreas) {
+            stagingArea.close();
+        }
+    }
+}
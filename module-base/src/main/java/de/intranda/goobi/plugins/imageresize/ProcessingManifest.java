@@ -0,0 +1,178 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Remembers which source images have been processed with which configuration. The manifest is stored as a small properties file in the
+ * destination folder, so a rerun of the step only needs to process new or changed images.
+ *
+ * For every image the size and modification time of the source are stored, optionally together with a SHA-256 hash of its content. The
+ * fingerprint of the effective configuration is stored as well; if it changes, all images are processed again.
+ */
+public class ProcessingManifest {
+
+    public static final String FILENAME = ".imageresize-manifest.properties";
+    private static final String TEMP_FILENAME = FILENAME + ".tmp";
+
+    private static final String CONFIG_KEY = "config";
+    private static final String FILE_PREFIX = "file.";
+
+    private final Path manifestFile;
+    private final boolean useHash;
+    private final Properties properties = new Properties();
+
+    private ProcessingManifest(Path manifestFile, boolean useHash) {
+        this.manifestFile = manifestFile;
+        this.useHash = useHash;
+    }
+
+    /**
+     * Loads the manifest of a destination folder. If there is none yet, an empty manifest is returned.
+     */
+    public static ProcessingManifest load(Path destDir, boolean useHash) throws IOException {
+        ProcessingManifest manifest = new ProcessingManifest(destDir.resolve(FILENAME), useHash);
+        if (Files.isRegularFile(manifest.manifestFile)) {
+            try (InputStream in = Files.newInputStream(manifest.manifestFile)) {
+                manifest.properties.load(in);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Checks if a file is a manifest or its temporary file. They are stored in the destination folder, which may be the source folder as well,
+     * so they have to be skipped when the source images are listed.
+     */
+    public static boolean isManifestFile(Path file) {
+        String fileName = file.getFileName().toString();
+        return FILENAME.equals(fileName) || TEMP_FILENAME.equals(fileName);
+    }
+
+    /**
+     * Writes the manifest. A temporary file is renamed, so an interrupted write never leaves a broken manifest behind.
+     */
+    public synchronized void save() throws IOException {
+        Path tempFile = manifestFile.resolveSibling(TEMP_FILENAME);
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            properties.store(out, "Processed images of the intranda_step_image_resize_and_watermark plugin");
+        }
+        try {
+            Files.move(tempFile, manifestFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Checks if the manifest was written for the given configuration fingerprint. If not, all entries are discarded and the new fingerprint is
+     * stored.
+     *
+     * @return true if the configuration is unchanged
+     */
+    public synchronized boolean checkConfigFingerprint(String fingerprint) {
+        if (fingerprint.equals(properties.getProperty(CONFIG_KEY))) {
+            return true;
+        }
+        properties.clear();
+        properties.setProperty(CONFIG_KEY, fingerprint);
+        return false;
+    }
+
+    /**
+     * Checks if the source image was already processed in its current state and the result still exists.
+     */
+    public synchronized boolean isUpToDate(Path source, Path target) throws IOException {
+        String entry = properties.getProperty(FILE_PREFIX + source.getFileName().toString());
+        if (entry == null || !Files.exists(target)) {
+            return false;
+        }
+        String[] parts = entry.split(";");
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        if (parts.length < 3 || Long.parseLong(parts[0]) != attributes.size()
+                || Long.parseLong(parts[1]) != attributes.lastModifiedTime().toMillis()) {
+            return false;
+        }
+        return !useHash || parts[2].equals(hash(source));
+    }
+
+    /**
+     * Records the current state of a source image after it was processed.
+     */
+    public void update(Path source) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        String hash = useHash ? hash(source) : "-";
+        String entry = attributes.size() + ";" + attributes.lastModifiedTime().toMillis() + ";" + hash;
+        synchronized (this) {
+            properties.setProperty(FILE_PREFIX + source.getFileName().toString(), entry);
+        }
+    }
+
+    public synchronized void remove(String filename) {
+        properties.remove(FILE_PREFIX + filename);
+    }
+
+    /**
+     * Returns the names of all source images in the manifest.
+     */
+    public synchronized Set<String> getFilenames() {
+        Set<String> filenames = new HashSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(FILE_PREFIX)) {
+                filenames.add(key.substring(FILE_PREFIX.length()));
+            }
+        }
+        return filenames;
+    }
+
+    /**
+     * Calculates the SHA-256 hash of a file, reading it as a stream.
+     */
+    public static String hash(Path file) throws IOException {
+        MessageDigest digest = createDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            while (in.read(buffer) != -1) {
+                // the digest is updated while reading
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Calculates the SHA-256 hash of a string.
+     */
+    public static String hash(String value) {
+        return toHex(createDigest().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,66 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The encoding of a derivative as tiled, multi-resolution (pyramidal) TIFF. The full-size image is followed by reduced-resolution pages, each
+ * half the size of the previous one, until a page fits into a single tile. An image server can then read only the tiles and the resolution a
+ * request needs instead of decoding the whole image.
+ */
+public class PyramidTiff {
+
+    /**
+     * The supported compressions.
+     */
+    public static final List<String> COMPRESSIONS = Arrays.asList("none", "deflate", "jpeg", "lzw");
+
+    private final String compression;
+    private final int quality;
+    private final int tileSize;
+
+    /**
+     * @param compression one of none, deflate, jpeg and lzw, case-insensitive
+     * @param quality the JPEG quality from 1 to 100, only used with jpeg compression
+     * @param tileSize the width and height of the tiles, a multiple of 16
+     * @throws IllegalArgumentException if the compression is unknown or the tile size is not a multiple of 16
+     */
+    public PyramidTiff(String compression, int quality, int tileSize) {
+        this.compression = compression.toLowerCase(Locale.ROOT);
+        if (!COMPRESSIONS.contains(this.compression)) {
+            throw new IllegalArgumentException("Unknown TIFF compression '" + compression + "', possible values are " + COMPRESSIONS);
+        }
+        // the TIFF specification requires tile dimensions that are multiples of 16
+        if (tileSize < 16 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException("The tile size must be a multiple of 16, but is " + tileSize);
+        }
+        this.quality = Math.max(1, Math.min(100, quality));
+        this.tileSize = tileSize;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the name of a file in the pyramid format: the extension is replaced by .tif.
+     */
+    public static String getFileName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return (dot < 0 ? fileName : fileName.substring(0, dot)) + ".tif";
+    }
+
+    @Override
+    public String toString() {
+        return "pyramid;" + compression + ";" + quality + ";" + tileSize;
+    }
+}
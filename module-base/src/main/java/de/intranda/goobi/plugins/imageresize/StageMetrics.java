@@ -0,0 +1,114 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the duration and the bytes read and written of every operation, grouped by processing stage. Count, total time, maximum and bytes
+ * are exact, the percentiles are calculated from the most recent samples of each stage.
+ */
+public class StageMetrics {
+
+    /**
+     * The number of recent samples per stage the percentiles are calculated from, for a run as well as for the totals of the JVM.
+     */
+    public static final int MAX_SAMPLES = 4096;
+
+    private final int maxSamples;
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final StageMetrics parent;
+
+    /**
+     * @param maxSamples the number of recent samples per stage to calculate the percentiles from
+     * @param parent metrics that receive every measurement as well, or null
+     */
+    public StageMetrics(int maxSamples, StageMetrics parent) {
+        this.maxSamples = maxSamples;
+        this.parent = parent;
+    }
+
+    /**
+     * Records a single operation.
+     *
+     * @param stage the name of the stage
+     * @param startNanos the value of {@link System#nanoTime()} when the operation started
+     * @param bytesIn the size of the files read by the operation
+     * @param bytesOut the size of the files written by the operation
+     */
+    public void record(String stage, long startNanos, long bytesIn, long bytesOut) {
+        add(stage, System.nanoTime() - startNanos, bytesIn, bytesOut);
+    }
+
+    /**
+     * Records an operation with a known duration.
+     */
+    void add(String stage, long nanos, long bytesIn, long bytesOut) {
+        synchronized (this) {
+            stages.computeIfAbsent(stage, name -> new Stage(maxSamples)).add(nanos, bytesIn, bytesOut);
+        }
+        if (parent != null) {
+            parent.add(stage, nanos, bytesIn, bytesOut);
+        }
+    }
+
+    /**
+     * Returns the statistics of all stages, in the order they were used first.
+     */
+    public synchronized List<StageStatistics> getStatistics() {
+        List<StageStatistics> statistics = new ArrayList<>();
+        for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+            statistics.add(entry.getValue().toStatistics(entry.getKey()));
+        }
+        return statistics;
+    }
+
+    public synchronized void reset() {
+        stages.clear();
+    }
+
+    private static class Stage {
+        private final long[] samples;
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+        private long bytesIn;
+        private long bytesOut;
+
+        private Stage(int maxSamples) {
+            samples = new long[Math.max(1, maxSamples)];
+        }
+
+        private void add(long nanos, long in, long out) {
+            // ring buffer of the most recent samples
+            samples[(int) (count % samples.length)] = nanos;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            bytesIn += in;
+            bytesOut += out;
+        }
+
+        private StageStatistics toStatistics(String name) {
+            long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+            Arrays.sort(sorted);
+            return new StageStatistics(name, count, toMillis(totalNanos), toMillis(percentile(sorted, 50)), toMillis(percentile(sorted, 95)),
+                    toMillis(maxNanos), bytesIn, bytesOut);
+        }
+
+        private static long percentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, index)];
+        }
+
+        private static long toMillis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+}
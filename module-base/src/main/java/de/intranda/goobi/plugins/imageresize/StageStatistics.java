@@ -0,0 +1,69 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the measurements of one processing stage, e.g. "resize" or "composite". Times are in milliseconds.
+ */
+public class StageStatistics {
+
+    private final String stage;
+    private final long count;
+    private final long totalMillis;
+    private final long p50Millis;
+    private final long p95Millis;
+    private final long maxMillis;
+    private final long bytesIn;
+    private final long bytesOut;
+
+    @ConstructorProperties({ "stage", "count", "totalMillis", "p50Millis", "p95Millis", "maxMillis", "bytesIn", "bytesOut" })
+    public StageStatistics(String stage, long count, long totalMillis, long p50Millis, long p95Millis, long maxMillis, long bytesIn,
+            long bytesOut) {
+        this.stage = stage;
+        this.count = count;
+        this.totalMillis = totalMillis;
+        this.p50Millis = p50Millis;
+        this.p95Millis = p95Millis;
+        this.maxMillis = maxMillis;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public long getP50Millis() {
+        return p50Millis;
+    }
+
+    public long getP95Millis() {
+        return p95Millis;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %dx, %.1f s, p50 %d ms, p95 %d ms, max %d ms, in %.1f MB, out %.1f MB", stage, count, totalMillis / 1000.0,
+                p50Millis, p95Millis, maxMillis, bytesIn / 1048576.0, bytesOut / 1048576.0);
+    }
+}
@@ -0,0 +1,155 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * A local scratch folder for the intermediate files of one run. Every page is resized and watermarked in the scratch folder and only the
+ * finished file is published to the destination folder, so each page is written to the (possibly remote) destination folder exactly once and
+ * nobody ever sees a page without its watermark.
+ *
+ * Publishing moves the file atomically if the scratch folder is on the same file system as the destination folder. Otherwise the file is copied
+ * to a hidden temporary file next to the target first, which is then renamed.
+ */
+@Log4j2
+public class StagingArea implements AutoCloseable {
+
+    private static final String PART_PREFIX = ".imageresize-";
+    private static final String PART_SUFFIX = ".part";
+    private static final long MAX_AGE_FOR_PART_FILES = TimeUnit.HOURS.toMillis(1);
+
+    private final Path runDir;
+    private final Path destDir;
+
+    /**
+     * Creates a new folder for this run inside the scratch folder.
+     *
+     * @param scratchDir the local scratch folder, e.g. on a tmpfs or local SSD
+     * @param destDir the folder the finished images are published to
+     */
+    public StagingArea(Path scratchDir, Path destDir) throws IOException {
+        Files.createDirectories(scratchDir);
+        this.runDir = Files.createTempDirectory(scratchDir, "imageresize-");
+        this.destDir = destDir;
+        deleteStalePartFiles();
+    }
+
+    /**
+     * Checks if a file is a temporary file of a publication in progress, which may be in the source folder if it is the destination folder as
+     * well.
+     */
+    public static boolean isPartFile(Path file) {
+        String fileName = file.getFileName().toString();
+        return fileName.startsWith(PART_PREFIX) && fileName.endsWith(PART_SUFFIX);
+    }
+
+    /**
+     * Returns the path in the scratch folder an image is processed in before it is published.
+     */
+    public Path getStagingPath(Path image) {
+        return runDir.resolve(image.getFileName());
+    }
+
+    /**
+     * Moves a finished image from the scratch folder to the destination folder, replacing an existing file atomically.
+     *
+     * @return the published file
+     */
+    public Path publish(Path stagedImage) throws IOException {
+        Path target = destDir.resolve(stagedImage.getFileName());
+        try {
+            Files.move(stagedImage, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return target;
+        } catch (AtomicMoveNotSupportedException e) {
+            // different file systems, copy next to the target and rename it there
+        }
+        Path partFile = destDir.resolve(PART_PREFIX + UUID.randomUUID().toString() + PART_SUFFIX);
+        try {
+            Files.copy(stagedImage, partFile);
+            try {
+                Files.move(partFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(partFile);
+        }
+        Files.delete(stagedImage);
+        return target;
+    }
+
+    /**
+     * Publishes an already published image under another name as well, as a hard link if the file system supports it and as a copy
+     * otherwise. An existing file with that name is replaced atomically.
+     *
+     * @param published the published image in the destination folder
+     * @param fileName the additional name
+     * @return true if a hard link was created, false if the image was copied
+     */
+    public boolean publishLink(Path published, String fileName) throws IOException {
+        Path target = destDir.resolve(fileName);
+        Path partFile = destDir.resolve(PART_PREFIX + UUID.randomUUID().toString() + PART_SUFFIX);
+        boolean linked;
+        try {
+            try {
+                Files.createLink(partFile, published);
+                linked = true;
+            } catch (UnsupportedOperationException | IOException e) {
+                // no hard links on this file system, or not allowed by its security settings
+                Files.deleteIfExists(partFile);
+                Files.copy(published, partFile);
+                linked = false;
+            }
+            try {
+                Files.move(partFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(partFile);
+        }
+        return linked;
+    }
+
+    /**
+     * Deletes the scratch folder of this run including all files that were not published.
+     */
+    @Override
+    public void close() {
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(runDir)) {
+            for (Path file : dirStream) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(runDir);
+        } catch (IOException e) {
+            log.error("could not delete scratch folder {}", runDir);
+        }
+    }
+
+    /**
+     * Removes temporary files that were left in the destination folder by an aborted run.
+     */
+    private void deleteStalePartFiles() {
+        if (!Files.isDirectory(destDir)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(destDir, PART_PREFIX + "*" + PART_SUFFIX)) {
+            for (Path file : dirStream) {
+                if (now - Files.getLastModifiedTime(file).toMillis() > MAX_AGE_FOR_PART_FILES) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            log.debug("could not clean up temporary files in {}: {}", destDir, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * A persistent on-disk cache for rendered text watermarks, shared by all plugin instances and Goobi processes that use the same directory.
+ * Entries are named after a hash of all fields that influence the rendering, so identical text watermarks are only rendered once.
+ *
+ * New entries are rendered into a temporary file in the cache directory and then renamed, so concurrent steps never see a half-written file.
+ * When the cache grows beyond its size limit, the least recently used entries are deleted. Only the entry just returned and entries used within
+ * the last few minutes are kept, so a step that is just starting does not lose its watermark, but the size limit is still enforced.
+ */
+@Log4j2
+public class TextWatermarkCache {
+
+    private static final String TEMP_PREFIX = ".rendering-";
+    private static final long MIN_AGE_FOR_EVICTION = TimeUnit.MINUTES.toMillis(10);
+    private static final long MAX_AGE_FOR_TEMP_FILES = TimeUnit.HOURS.toMillis(1);
+
+    private final Path cacheDir;
+    private final long maxSize;
+
+    /**
+     * @param cacheDir the directory to store rendered watermarks in
+     * @param maxSize the maximum size of all cached watermarks in bytes
+     */
+    public TextWatermarkCache(Path cacheDir, long maxSize) {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the rendered image for a text watermark, rendering it with the given backend if it is not in the cache yet.
+     */
+    public Path get(WatermarkDescription watermarkDescription, ImageProcessingBackend backend) throws ImageProcessingException, InterruptedException {
+        Path cachedFile = cacheDir.resolve(getKey(watermarkDescription, backend) + ".png");
+        try {
+            if (Files.isRegularFile(cachedFile)) {
+                markAsUsed(cachedFile);
+                return cachedFile;
+            }
+            Files.createDirectories(cacheDir);
+            Path tempFile = cacheDir.resolve(TEMP_PREFIX + UUID.randomUUID().toString() + ".png");
+            try {
+                backend.renderText(watermarkDescription, tempFile);
+                try {
+                    Files.move(tempFile, cachedFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, cachedFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            throw new ImageProcessingException("Error creating watermark image from text", e);
+        }
+        evict(cachedFile);
+        return cachedFile;
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is smaller than its maximum size, and removes leftovers of aborted renderings.
+     */
+    private void evict(Path keep) {
+        List<Path> entries = new ArrayList<>();
+        long totalSize = 0;
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(cacheDir, "*.png")) {
+            for (Path file : dirStream) {
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                if (file.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    if (now - modified > MAX_AGE_FOR_TEMP_FILES) {
+                        Files.deleteIfExists(file);
+                    }
+                    continue;
+                }
+                entries.add(file);
+                totalSize += Files.size(file);
+            }
+            if (totalSize <= maxSize) {
+                return;
+            }
+            entries.sort(Comparator.comparingLong(TextWatermarkCache::lastModified));
+            for (Path file : entries) {
+                if (totalSize <= maxSize) {
+                    break;
+                }
+                if (file.equals(keep) || now - lastModified(file) < MIN_AGE_FOR_EVICTION) {
+                    continue;
+                }
+                long size = Files.size(file);
+                Files.deleteIfExists(file);
+                totalSize -= size;
+            }
+        } catch (IOException e) {
+            // another step may have evicted the same files concurrently, so this is not an error
+            log.debug("could not clean up text watermark cache: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Marks an entry as recently used. The cache directory may be shared with other users or mounted read-only, so this is best effort.
+     */
+    private static void markAsUsed(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.debug("could not update the modification time of {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Creates the cache key from all fields that influence the rendered text watermark.
+     */
+    static String getKey(WatermarkDescription watermarkDescription, ImageProcessingBackend backend) {
+        String fields = String.join("\u0000", backend.getName(), watermarkDescription.getText(), watermarkDescription.getFont(),
+                watermarkDescription.getBoxSize(), watermarkDescription.getShadeSize());
+        return ProcessingManifest.hash(fields);
+    }
+}
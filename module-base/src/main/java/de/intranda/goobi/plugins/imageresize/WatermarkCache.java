@@ -0,0 +1,164 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Caches the dimensions of watermark images and the scaled copies of them for the duration of one run. Most pages of a volume have the same
+ * size, so they can share one scaled watermark instead of creating and deleting a new one for every page.
+ *
+ * The number of scaled copies is bounded. Evicted copies that are still used by another page are deleted as soon as that page is done.
+ */
+@Log4j2
+public class WatermarkCache implements AutoCloseable {
+
+    private final ImageProcessingBackend backend;
+    private final ImageDimensionProbe dimensionProbe;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> scaledWatermarks = new LinkedHashMap<>(16, 0.75f, true);
+
+    public WatermarkCache(ImageProcessingBackend backend, ImageDimensionProbe dimensionProbe, int maxEntries) {
+        this.backend = backend;
+        this.dimensionProbe = dimensionProbe;
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * Returns the dimensions of a watermark image. The image header is only read the first time.
+     */
+    public int[] getDimensions(Path watermark) throws ImageProcessingException, InterruptedException {
+        return dimensionProbe.getImageDimensions(watermark);
+    }
+
+    /**
+     * Returns the watermark scaled to the given percentage. The returned object must be closed when the watermark is not needed anymore.
+     */
+    public ScaledWatermark acquire(Path watermark, int scaleFactor) throws ImageProcessingException, InterruptedException {
+        if (scaleFactor >= 100) {
+            return new ScaledWatermark(null, watermark);
+        }
+        String key = watermark.toAbsolutePath() + "@" + scaleFactor;
+        Entry entry;
+        synchronized (this) {
+            entry = scaledWatermarks.get(key);
+            if (entry == null) {
+                entry = new Entry(createTempPath(watermark));
+                scaledWatermarks.put(key, entry);
+                evictEldestEntries();
+            }
+            entry.users++;
+        }
+        try {
+            entry.create(backend, watermark, scaleFactor);
+        } catch (ImageProcessingException | InterruptedException | RuntimeException e) {
+            synchronized (this) {
+                scaledWatermarks.remove(key, entry);
+                entry.evicted = true;
+            }
+            release(entry);
+            throw e;
+        }
+        return new ScaledWatermark(entry, entry.path);
+    }
+
+    private void evictEldestEntries() {
+        Iterator<Entry> iterator = scaledWatermarks.values().iterator();
+        while (scaledWatermarks.size() > maxEntries && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            eldest.evicted = true;
+            if (eldest.users == 0) {
+                delete(eldest.path);
+            }
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.users--;
+        if (entry.evicted && entry.users == 0) {
+            delete(entry.path);
+        }
+    }
+
+    /**
+     * Deletes all scaled watermarks.
+     */
+    @Override
+    public synchronized void close() {
+        List<Entry> entries = new ArrayList<>(scaledWatermarks.values());
+        scaledWatermarks.clear();
+        for (Entry entry : entries) {
+            entry.evicted = true;
+            if (entry.users == 0) {
+                delete(entry.path);
+            }
+        }
+    }
+
+    private static Path createTempPath(Path watermark) {
+        String filename = watermark.getFileName().toString();
+        String basename = filename.contains(".") ? filename.substring(0, filename.lastIndexOf('.')) : filename;
+        String tmpdir = System.getProperty("java.io.tmpdir");
+        return Paths.get(tmpdir, basename + "_resized_" + UUID.randomUUID().toString() + ".png");
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.error("could not delete scaled watermark {}", path);
+        }
+    }
+
+    private static class Entry {
+        private final Path path;
+        private int users;
+        private boolean evicted;
+        private boolean created;
+
+        private Entry(Path path) {
+            this.path = path;
+        }
+
+        private synchronized void create(ImageProcessingBackend backend, Path watermark, int scaleFactor)
+                throws ImageProcessingException, InterruptedException {
+            if (!created) {
+                backend.scale(watermark, path, scaleFactor);
+                created = true;
+            }
+        }
+    }
+
+    /**
+     * A scaled watermark that is in use by a page.
+     */
+    public class ScaledWatermark implements AutoCloseable {
+        private final Entry entry;
+        private final Path path;
+
+        private ScaledWatermark(Entry entry, Path path) {
+            this.entry = entry;
+            this.path = path;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        @Override
+        public void close() {
+            if (entry != null) {
+                release(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * A work queue for the pages of one process, stored in a job folder on a file system that is shared by all nodes. The page list is split into
+ * chunks and every chunk can be claimed by exactly one worker at a time, using lock files:
+ * <ul>
+ * <li>chunk-NNNNN.list contains the file names of the pages of a chunk</li>
+ * <li>chunk-NNNNN.lease is created exclusively by the worker that claims the chunk. The worker updates its modification time regularly as a
+ * heartbeat. A lease that has not been updated for longer than the lease timeout is expired and the chunk can be claimed by another worker.</li>
+ * <li>chunk-NNNNN.done is written when the chunk is finished. It contains the pages that failed, with their error messages.</li>
+ * </ul>
+ * The job folder is written under a temporary name and renamed when it is complete, so workers never see a partially written job. The clocks
+ * of all nodes need to be synchronized, with a deviation well below the lease timeout. If a worker loses its lease while it is still working,
+ * a chunk may be processed twice; this is harmless, because every page is published atomically.
+ */
+@Log4j2
+public class WorkQueue {
+
+    public static final String JOB_FILE = "job.properties";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CANCELLED_FILE = "cancelled";
+    private static final String CHUNK_PREFIX = "chunk-";
+    private static final String LIST_SUFFIX = ".list";
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final String DONE_SUFFIX = ".done";
+    private static final String LEASE_TIMEOUT_KEY = "leaseTimeout";
+
+    private final Path jobDir;
+    private final Properties job = new Properties();
+    private final List<String> chunkNames = new ArrayList<>();
+    private final long leaseTimeout;
+
+    private WorkQueue(Path jobDir) throws IOException {
+        this.jobDir = jobDir;
+        try (InputStream in = Files.newInputStream(jobDir.resolve(JOB_FILE))) {
+            job.load(in);
+        }
+        leaseTimeout = TimeUnit.SECONDS.toMillis(Long.parseLong(job.getProperty(LEASE_TIMEOUT_KEY, "120")));
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(jobDir, CHUNK_PREFIX + "*" + LIST_SUFFIX)) {
+            for (Path file : dirStream) {
+                String filename = file.getFileName().toString();
+                chunkNames.add(filename.substring(0, filename.length() - LIST_SUFFIX.length()));
+            }
+        }
+        Collections.sort(chunkNames);
+    }
+
+    /**
+     * Creates a new job in the queue folder.
+     *
+     * @param queueDir the shared queue folder all workers watch
+     * @param jobName a unique name for the job folder
+     * @param job the settings the workers need to process the pages, see {@link DistributedJob}
+     * @param files files the workers need, e.g. watermark images, by their name in the job folder
+     * @param pages the file names of all pages
+     * @param chunkSize the number of pages per chunk
+     * @param leaseTimeoutSeconds the time after which a lease without heartbeat expires
+     */
+    public static WorkQueue create(Path queueDir, String jobName, Properties job, Map<String, Path> files, List<String> pages, int chunkSize,
+            long leaseTimeoutSeconds) throws IOException {
+        Path tempDir = queueDir.resolve(jobName + TEMP_SUFFIX);
+        Files.createDirectories(tempDir);
+        Properties jobWithTimeout = new Properties();
+        jobWithTimeout.putAll(job);
+        jobWithTimeout.setProperty(LEASE_TIMEOUT_KEY, String.valueOf(leaseTimeoutSeconds));
+        try (OutputStream out = Files.newOutputStream(tempDir.resolve(JOB_FILE))) {
+            jobWithTimeout.store(out, "Distributed job of the intranda_step_image_resize_and_watermark plugin");
+        }
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            Files.copy(file.getValue(), tempDir.resolve(file.getKey()));
+        }
+        int chunkSizeOrOne = Math.max(1, chunkSize);
+        for (int start = 0, chunk = 0; start < pages.size(); start += chunkSizeOrOne, chunk++) {
+            List<String> chunkPages = pages.subList(start, Math.min(pages.size(), start + chunkSizeOrOne));
+            Files.write(tempDir.resolve(String.format("%s%05d%s", CHUNK_PREFIX, chunk, LIST_SUFFIX)), chunkPages, StandardCharsets.UTF_8);
+        }
+        Path jobDir = queueDir.resolve(jobName);
+        Files.move(tempDir, jobDir, StandardCopyOption.ATOMIC_MOVE);
+        return new WorkQueue(jobDir);
+    }
+
+    /**
+     * Opens an existing job folder.
+     */
+    public static WorkQueue open(Path jobDir) throws IOException {
+        return new WorkQueue(jobDir);
+    }
+
+    /**
+     * Returns all complete job folders in the queue folder that were not cancelled, oldest first.
+     */
+    public static List<Path> listJobs(Path queueDir) throws IOException {
+        List<Path> jobs = new ArrayList<>();
+        if (!Files.isDirectory(queueDir)) {
+            return jobs;
+        }
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(queueDir)) {
+            for (Path dir : dirStream) {
+                if (!dir.getFileName().toString().endsWith(TEMP_SUFFIX) && Files.isRegularFile(dir.resolve(JOB_FILE))
+                        && !Files.exists(dir.resolve(CANCELLED_FILE))) {
+                    jobs.add(dir);
+                }
+            }
+        }
+        jobs.sort((a, b) -> {
+            try {
+                return Files.getLastModifiedTime(a).compareTo(Files.getLastModifiedTime(b));
+            } catch (IOException e) {
+                return a.compareTo(b);
+            }
+        });
+        return jobs;
+    }
+
+    public Path getJobDir() {
+        return jobDir;
+    }
+
+    public Properties getJob() {
+        return job;
+    }
+
+    public long getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    /**
+     * Claims the first chunk that is neither finished nor leased by a live worker.
+     *
+     * @param workerId a name for the claiming worker, e.g. host name and process id
+     * @return the lease, or null if there is no chunk left to claim
+     */
+    public Lease claim(String workerId) throws IOException {
+        if (isCancelled()) {
+            return null;
+        }
+        for (String chunkName : chunkNames) {
+            if (Files.exists(jobDir.resolve(chunkName + DONE_SUFFIX))) {
+                continue;
+            }
+            Path leaseFile = jobDir.resolve(chunkName + LEASE_SUFFIX);
+            if (tryCreateLease(leaseFile, workerId) || (breakExpiredLease(leaseFile) && tryCreateLease(leaseFile, workerId))) {
+                if (Files.exists(jobDir.resolve(chunkName + DONE_SUFFIX))) {
+                    // finished by another worker while this one was claiming it
+                    Files.deleteIfExists(leaseFile);
+                    continue;
+                }
+                List<String> pages = Files.readAllLines(jobDir.resolve(chunkName + LIST_SUFFIX), StandardCharsets.UTF_8);
+                return new Lease(chunkName, leaseFile, workerId, pages);
+            }
+        }
+        return null;
+    }
+
+    private static boolean tryCreateLease(Path leaseFile, String workerId) throws IOException {
+        try {
+            // creating a file exclusively is atomic on local file systems and on NFS v3 and later
+            Files.createFile(leaseFile);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+        Files.write(leaseFile, workerId.getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    /**
+     * Removes a lease whose heartbeat is older than the lease timeout. The lease is renamed to a unique name first, so only one of several
+     * workers that find the same expired lease succeeds.
+     *
+     * @return true if the lease was removed by this worker
+     */
+    private boolean breakExpiredLease(Path leaseFile) throws IOException {
+        try {
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(leaseFile).toMillis() <= leaseTimeout) {
+                return false;
+            }
+            Path expired = leaseFile.resolveSibling(leaseFile.getFileName() + ".expired-" + UUID.randomUUID());
+            Files.move(leaseFile, expired, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Lease {} expired, owner was {}", leaseFile, new String(Files.readAllBytes(expired), StandardCharsets.UTF_8));
+            Files.deleteIfExists(expired);
+            return true;
+        } catch (NoSuchFileException e) {
+            // released or broken by another worker in the meantime
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if all chunks are finished.
+     */
+    public boolean isComplete() {
+        for (String chunkName : chunkNames) {
+            if (!Files.exists(jobDir.resolve(chunkName + DONE_SUFFIX))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the pages of all finished chunks that failed, with their error messages, in page order.
+     */
+    public Map<String, String> getFailures() throws IOException {
+        Map<String, String> failures = new LinkedHashMap<>();
+        for (String chunkName : chunkNames) {
+            Path doneFile = jobDir.resolve(chunkName + DONE_SUFFIX);
+            if (Files.exists(doneFile)) {
+                for (String line : Files.readAllLines(doneFile, StandardCharsets.UTF_8)) {
+                    int tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        failures.put(line.substring(0, tab), line.substring(tab + 1));
+                    }
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Marks the job as cancelled. Workers do not claim any further chunks of it.
+     */
+    public void cancel() throws IOException {
+        Files.write(jobDir.resolve(CANCELLED_FILE), new byte[0]);
+    }
+
+    public boolean isCancelled() {
+        return Files.exists(jobDir.resolve(CANCELLED_FILE));
+    }
+
+    /**
+     * Deletes the job folder. Workers that still hold a lease notice it when they try to finish their chunk.
+     */
+    public void delete() {
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(jobDir)) {
+            for (Path file : dirStream) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(jobDir);
+        } catch (IOException e) {
+            log.error("could not delete job folder {}", jobDir);
+        }
+    }
+
+    /**
+     * The claim of a worker on one chunk.
+     */
+    public class Lease {
+        private final String chunkName;
+        private final Path leaseFile;
+        private final String workerId;
+        private final List<String> pages;
+
+        private Lease(String chunkName, Path leaseFile, String workerId, List<String> pages) {
+            this.chunkName = chunkName;
+            this.leaseFile = leaseFile;
+            this.workerId = workerId;
+            this.pages = Collections.unmodifiableList(pages);
+        }
+
+        public String getChunkName() {
+            return chunkName;
+        }
+
+        /**
+         * Returns the file names of the pages of this chunk.
+         */
+        public List<String> getPages() {
+            return pages;
+        }
+
+        /**
+         * Renews the lease.
+         *
+         * @return false if the lease expired and was taken over by another worker
+         */
+        public boolean heartbeat() {
+            try {
+                if (!workerId.equals(new String(Files.readAllBytes(leaseFile), StandardCharsets.UTF_8))) {
+                    return false;
+                }
+                Files.setLastModifiedTime(leaseFile, FileTime.fromMillis(System.currentTimeMillis()));
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Marks the chunk as finished and removes the lease. The done file is renamed into place, so it is never seen half written.
+         *
+         * @param failures the pages that could not be processed, with their error messages
+         */
+        public void complete(Map<String, String> failures) throws IOException {
+            List<String> lines = new ArrayList<>();
+            for (Map.Entry<String, String> failure : failures.entrySet()) {
+                String message = failure.getValue() == null ? "" : failure.getValue().replaceAll("[\\r\\n\\t]+", " ");
+                lines.add(failure.getKey() + '\t' + message);
+            }
+            Path tempFile = jobDir.resolve(chunkName + DONE_SUFFIX + TEMP_SUFFIX + "-" + UUID.randomUUID());
+            Files.write(tempFile, lines, StandardCharsets.UTF_8);
+            try {
+                Files.move(tempFile, jobDir.resolve(chunkName + DONE_SUFFIX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, jobDir.resolve(chunkName + DONE_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            }
+            release();
+        }
+
+        /**
+         * Gives up the chunk without finishing it, so another worker can claim it right away.
+         */
+        public void release() {
+            try {
+                if (workerId.equals(new String(Files.readAllBytes(leaseFile), StandardCharsets.UTF_8))) {
+                    Files.deleteIfExists(leaseFile);
+                }
+            } catch (IOException e) {
+                // the lease is already gone
+            }
+        }
+    }
+}
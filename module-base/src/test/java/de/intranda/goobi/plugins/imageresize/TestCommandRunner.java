@@ -0,0 +1,43 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import org.junit.Test;
+
+public class TestCommandRunner {
+
+    @Test
+    public void testOutputAndExitCode() throws IOException, InterruptedException {
+        CommandRunner.Result result = CommandRunner.run(Arrays.asList("sh", "-c", "echo 1200 800; echo broken >&2; exit 3"), 10000);
+        assertFalse(result.isTimedOut());
+        assertEquals(3, result.getExitCode());
+        assertEquals(Collections.singletonList("1200 800"), result.getStdOut());
+        assertEquals("broken", result.getStdErr());
+    }
+
+    @Test
+    public void testHungProcessTreeIsKilled() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        // the shell starts a child that would keep running after the shell itself is killed
+        CommandRunner.Result result = CommandRunner.run(Arrays.asList("sh", "-c", "sleep 60 & echo $!; wait"), 500);
+        assertTrue(result.isTimedOut());
+        assertTrue(result.isKilled());
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        long childPid = Long.parseLong(result.getStdOut().get(0).trim());
+        // killing is asynchronous, give the child some time to disappear
+        long deadline = System.currentTimeMillis() + 10000;
+        Optional<ProcessHandle> child = ProcessHandle.of(childPid);
+        while (child.isPresent() && child.get().isAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            child = ProcessHandle.of(childPid);
+        }
+        assertFalse(child.isPresent() && child.get().isAlive());
+    }
+}
@@ -0,0 +1,74 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.junit.Test;
+
+public class TestConfigurationIndex {
+
+    @Test
+    public void testResolveSettings() throws ConfigurationException {
+        ConfigurationIndex index = new ConfigurationIndex(readConfig());
+        ConfigurationIndex.StepSettings stepSettings = index.getStepSettings("some project", "some step");
+        assertEquals("cropped", stepSettings.getConfig().getString("sourceDir"));
+        assertSame(stepSettings, index.getStepSettings("some project", "some step"));
+
+        ConfigurationIndex.ResolvedSettings settings = stepSettings.resolve("mycollection", "Monograph");
+        assertEquals(1500, settings.getResizeTo());
+        assertEquals(1, settings.getWatermarkDescriptions().size());
+        assertEquals(1, settings.getTargets().size());
+        assertEquals("thumbs", settings.getTargets().get(0).getDestDir());
+        assertEquals(300, settings.getTargets().get(0).getResizeTo());
+        assertFalse(settings.getTargets().get(0).isWatermark());
+        assertNull(settings.getTargets().get(0).getPyramidTiff());
+        assertEquals("jpeg", settings.getPyramidTiff().getCompression());
+        assertEquals(85, settings.getPyramidTiff().getQuality());
+        assertEquals(512, settings.getPyramidTiff().getTileSize());
+        assertSame(settings, stepSettings.resolve("mycollection", "Monograph"));
+
+        ConfigurationIndex.ResolvedSettings noMatch = stepSettings.resolve("unknown", "Monograph");
+        assertEquals(0, noMatch.getResizeTo());
+        assertTrue(noMatch.getWatermarkDescriptions().isEmpty());
+        assertTrue(noMatch.getTargets().isEmpty());
+        assertNull(noMatch.getPyramidTiff());
+    }
+
+    @Test
+    public void testWatermarkDescriptionsAreCopied() throws ConfigurationException {
+        ConfigurationIndex index = new ConfigurationIndex(readConfig());
+        ConfigurationIndex.ResolvedSettings settings = index.getStepSettings("p", "s").resolve("myothercollection", "");
+        List<WatermarkDescription> first = settings.getWatermarkDescriptions();
+        first.get(0).setImagePath(Paths.get("/tmp/rendered.png"));
+        List<WatermarkDescription> second = settings.getWatermarkDescriptions();
+        assertNotSame(first.get(0), second.get(0));
+        assertNull(second.get(0).getImagePath());
+        assertEquals("My watermark text", second.get(0).getText());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPyramidTiffFailsOnResolve() throws ConfigurationException {
+        // the index is built, only the processes the invalid rule applies to fail
+        ConfigurationIndex.StepSettings stepSettings = new ConfigurationIndex(readConfig()).getStepSettings("p", "s");
+        assertEquals(1500, stepSettings.resolve("mycollection", "Monograph").getResizeTo());
+        stepSettings.resolve("brokencollection", "Monograph");
+    }
+
+    private XMLConfiguration readConfig() throws ConfigurationException {
+        File configFile = new File("src/test/resources/testconfig.xml");
+        XMLConfiguration xmlConfig = new XMLConfiguration(configFile);
+        xmlConfig.setExpressionEngine(new XPathExpressionEngine());
+        return xmlConfig;
+    }
+}
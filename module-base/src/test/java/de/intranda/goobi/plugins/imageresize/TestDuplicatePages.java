@@ -0,0 +1,55 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class TestDuplicatePages {
+
+    @Test
+    public void testFindDuplicates() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("duplicates");
+        Path blank1 = Files.write(dir.resolve("00000001.tif"), new byte[1000]);
+        Path page = Files.write(dir.resolve("00000002.tif"), "page 2".getBytes());
+        Path blank2 = Files.write(dir.resolve("00000003.tif"), new byte[1000]);
+        // same size, different content
+        byte[] content = new byte[1000];
+        content[999] = 1;
+        Path other = Files.write(dir.resolve("00000004.tif"), content);
+        Path blank3 = Files.write(dir.resolve("00000005.tif"), new byte[1000]);
+
+        DuplicatePages duplicatePages = DuplicatePages.find(Arrays.asList(blank1, page, blank2, other, blank3), 2);
+        assertEquals(Arrays.asList(blank1, page, other), duplicatePages.getUniquePages());
+        assertEquals(Arrays.asList(blank2, blank3), duplicatePages.getDuplicates(blank1));
+        assertEquals(Collections.emptyList(), duplicatePages.getDuplicates(page));
+        assertEquals(2, duplicatePages.getDuplicateCount());
+    }
+
+    @Test
+    public void testPublishLink() throws IOException {
+        Path scratchDir = Files.createTempDirectory("scratch");
+        Path destDir = Files.createTempDirectory("dest");
+        Path published = Files.write(destDir.resolve("00000001.jpg"), "result".getBytes());
+        Files.write(destDir.resolve("00000003.jpg"), "old result".getBytes());
+        try (StagingArea stagingArea = new StagingArea(scratchDir, destDir)) {
+            stagingArea.publishLink(published, "00000003.jpg");
+        }
+        assertEquals("result", new String(Files.readAllBytes(destDir.resolve("00000003.jpg"))));
+        List<String> names;
+        try (Stream<Path> files = Files.list(destDir)) {
+            names = files.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+        assertEquals(Arrays.asList("00000001.jpg", "00000003.jpg"), names);
+        assertTrue(Files.isRegularFile(published));
+    }
+}
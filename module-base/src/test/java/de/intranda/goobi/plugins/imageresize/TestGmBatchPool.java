@@ -0,0 +1,69 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestGmBatchPool {
+
+    private Path folder;
+    private GmBatchPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("gmbatch");
+        // answers every command like gm batch does, except "hang"
+        Path gm = folder.resolve("gm");
+        Files.write(gm, ("#!/bin/sh\nwhile read line; do\n  case \"$line\" in\n    *hang*) sleep 60 ;;\n    *) echo __GM_BATCH_PASS__ ;;\n"
+                + "  esac\ndone\n").getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(gm, PosixFilePermissions.fromString("rwxr-xr-x"));
+        pool = new GmBatchPool(gm.toString(), 2, 100);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        pool.close();
+        Files.deleteIfExists(folder.resolve("gm"));
+        Files.deleteIfExists(folder);
+    }
+
+    @Test
+    public void testHungWorkerIsReplaced() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        GmBatchPool.Result result = pool.run(Collections.singletonList("hang"), 500);
+        assertTrue(result.isTimedOut());
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        assertEquals(0, pool.getWorkerCount());
+
+        assertTrue(pool.run(Collections.singletonList("identify"), 5000).isSuccess());
+        assertEquals(1, pool.getWorkerCount());
+    }
+
+    @Test
+    public void testIdleWorkersAreStopped() throws IOException, InterruptedException {
+        assertTrue(pool.run(Collections.singletonList("identify"), 5000).isSuccess());
+        pool.stopIdleWorkers(System.currentTimeMillis() - 60000);
+        assertEquals(1, pool.getWorkerCount());
+        pool.stopIdleWorkers(System.currentTimeMillis() + 1);
+        assertEquals(0, pool.getWorkerCount());
+    }
+
+    @Test
+    public void testSharedPoolIsReused() {
+        GmBatchPool first = GmBatchPool.getShared(folder.resolve("gm").toString(), 1, 100);
+        assertSame(first, GmBatchPool.getShared(folder.resolve("gm").toString(), 4, 100));
+        assertFalse(first == GmBatchPool.getShared(folder.resolve("gm").toString(), 4, 200));
+    }
+}
@@ -0,0 +1,79 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class TestImageHeaderReader {
+
+    @Test
+    public void testImageIoFormats() throws IOException {
+        Path dir = Files.createTempDirectory("header");
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        for (String format : new String[] { "tiff", "jpeg", "png" }) {
+            Path file = dir.resolve("image." + format);
+            ImageIO.write(image, format, file.toFile());
+            assertArrayEquals(format, new int[] { 300, 200, 1 }, ImageHeaderReader.read(file));
+        }
+    }
+
+    @Test
+    public void testJpegWithExifOrientation() throws IOException {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "jpeg", jpeg);
+        byte[] original = jpeg.toByteArray();
+
+        // APP1 segment with a little endian TIFF structure containing only the orientation
+        ByteBuffer app1 = ByteBuffer.allocate(2 + 2 + 6 + 8 + 2 + 12 + 4).order(ByteOrder.BIG_ENDIAN);
+        app1.put((byte) 0xff).put((byte) 0xe1).putShort((short) (app1.capacity() - 2));
+        app1.put("Exif".getBytes()).put((byte) 0).put((byte) 0);
+        app1.order(ByteOrder.LITTLE_ENDIAN);
+        app1.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        app1.putShort((short) 1);
+        app1.putShort((short) 274).putShort((short) 3).putInt(1).putShort((short) 6).putShort((short) 0);
+        app1.putInt(0);
+
+        ByteArrayOutputStream withExif = new ByteArrayOutputStream();
+        withExif.write(original, 0, 2);
+        withExif.write(app1.array());
+        withExif.write(original, 2, original.length - 2);
+        Path file = Files.createTempFile("header", ".jpg");
+        Files.write(file, withExif.toByteArray());
+
+        assertArrayEquals(new int[] { 300, 200, 6 }, ImageHeaderReader.read(file));
+    }
+
+    @Test
+    public void testBigEndianBigTiffWithLong8Values() throws IOException {
+        // header, IFD with width and height as LONG8 and the orientation as SHORT
+        ByteBuffer tiff = ByteBuffer.allocate(16 + 8 + 3 * 20 + 8).order(ByteOrder.BIG_ENDIAN);
+        tiff.put((byte) 'M').put((byte) 'M').putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(16);
+        tiff.putLong(3);
+        tiff.putShort((short) 256).putShort((short) 16).putLong(1).putLong(300);
+        tiff.putShort((short) 257).putShort((short) 16).putLong(1).putLong(200);
+        tiff.putShort((short) 274).putShort((short) 3).putLong(1).putShort((short) 6).putShort((short) 0).putInt(0);
+        tiff.putLong(0);
+        Path file = Files.createTempFile("header", ".tif");
+        Files.write(file, tiff.array());
+
+        assertArrayEquals(new int[] { 300, 200, 6 }, ImageHeaderReader.read(file));
+    }
+
+    @Test
+    public void testUnknownFormat() throws IOException {
+        Path file = Files.createTempFile("header", ".txt");
+        Files.write(file, "this is not an image".getBytes());
+        assertNull(ImageHeaderReader.read(file));
+    }
+}
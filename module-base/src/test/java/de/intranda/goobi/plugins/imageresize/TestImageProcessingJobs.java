@@ -0,0 +1,70 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestImageProcessingJobs {
+
+    @Test
+    public void testJobIsSubmittedOncePerStep() throws InterruptedException {
+        ImageProcessingJobs jobs = new ImageProcessingJobs();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(jobs.submit(1, 10, () -> {
+            JobProgress progress = jobs.start(1, 10);
+            progress.setPagesTotal(4);
+            progress.pageDone();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            jobs.finish(progress);
+        }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // the step is still running, e.g. Goobi ran the step again
+        assertFalse(jobs.submit(1, 10, () -> {
+        }));
+        JobProgress progress = jobs.getProgress(10);
+        assertTrue(progress.isRunning());
+        assertEquals(1, progress.getPagesDone());
+        assertEquals(4, progress.getPagesTotal());
+        assertTrue(progress.getEtaSeconds() >= 0);
+        assertEquals(1, jobs.getJobs().size());
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (jobs.getProgress(10) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertNull(jobs.getProgress(10));
+    }
+
+    @Test
+    public void testSynchronousRunIsRegistered() {
+        ImageProcessingJobs jobs = new ImageProcessingJobs();
+        JobProgress progress = jobs.start(2, 20);
+        assertSame(progress, jobs.getProgress(20));
+        assertEquals(-1, progress.getEtaSeconds());
+        assertEquals("process 2, step 20: 0/? pages", progress.toString());
+        jobs.finish(progress);
+        assertNull(jobs.getProgress(20));
+    }
+
+    @Test
+    public void testProgressIsReportedOncePerInterval() {
+        JobProgress progress = new ImageProcessingJobs().start(3, 30);
+        assertFalse(progress.isReportDue(TimeUnit.HOURS.toNanos(1)));
+        assertTrue(progress.isReportDue(0));
+        assertFalse(progress.isReportDue(TimeUnit.HOURS.toNanos(1)));
+    }
+}
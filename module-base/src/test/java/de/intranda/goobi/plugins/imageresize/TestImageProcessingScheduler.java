@@ -0,0 +1,141 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestImageProcessingScheduler {
+
+    @Test
+    public void testOwnersAreAdmittedRoundRobin() throws InterruptedException {
+        ImageProcessingScheduler scheduler = new ImageProcessingScheduler();
+        scheduler.configure(1, 1024L * 1024 * 1024, false);
+        ImageProcessingScheduler.Permit first = scheduler.acquire("huge volume", 100);
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (String name : Arrays.asList("huge volume/2", "huge volume/3", "huge volume/4", "small volume/1")) {
+            threads.add(startPage(scheduler, name, 100, order));
+            waitForWaiting(scheduler, threads.size());
+        }
+        first.close();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(Arrays.asList("huge volume/2", "small volume/1", "huge volume/3", "huge volume/4"), order);
+        assertEquals(0, scheduler.getRunning());
+    }
+
+    @Test
+    public void testMemoryLimit() throws InterruptedException {
+        ImageProcessingScheduler scheduler = new ImageProcessingScheduler();
+        long pixels = 1000000;
+        scheduler.configure(8, 2 * pixels * ImageProcessingScheduler.ESTIMATED_BYTES_PER_PIXEL, false);
+        ImageProcessingScheduler.Permit first = scheduler.acquire("process", pixels);
+        ImageProcessingScheduler.Permit second = scheduler.acquire("process", pixels);
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Thread third = startPage(scheduler, "process/3", pixels, order);
+        waitForWaiting(scheduler, 1);
+        assertEquals(2, scheduler.getRunning());
+        first.close();
+        third.join(10000);
+        assertEquals(Collections.singletonList("process/3"), order);
+        second.close();
+
+        // a page larger than the limit is admitted when nothing else runs
+        scheduler.acquire("process", 10 * pixels).close();
+    }
+
+    @Test
+    public void testLargePageIsPassedOverOnlyForAWhile() throws InterruptedException {
+        ImageProcessingScheduler scheduler = new ImageProcessingScheduler();
+        long pixels = 1000000;
+        scheduler.configure(8, 2 * pixels * ImageProcessingScheduler.ESTIMATED_BYTES_PER_PIXEL, false);
+        ImageProcessingScheduler.Permit running = scheduler.acquire("running", pixels);
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        threads.add(startPage(scheduler, "large/1", 2 * pixels, order));
+        waitForWaiting(scheduler, 1);
+        // small pages still fit next to the running one and are admitted before the large page, but only for a while
+        int smallPages = ImageProcessingScheduler.MAX_PASSED_OVER + 4;
+        for (int i = 1; i <= smallPages; i++) {
+            threads.add(startPage(scheduler, "small/" + i, pixels, order));
+            waitForPages(scheduler, order, i + 1);
+        }
+        assertEquals(ImageProcessingScheduler.MAX_PASSED_OVER, order.size());
+        assertEquals(5, scheduler.getWaiting());
+
+        running.close();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals("large/1", order.get(ImageProcessingScheduler.MAX_PASSED_OVER));
+        assertEquals(smallPages + 1, order.size());
+    }
+
+    @Test
+    public void testEstimatedMemory() throws InterruptedException {
+        ImageProcessingScheduler scheduler = new ImageProcessingScheduler();
+        scheduler.configure(8, 1024L * 1024 * 1024, false);
+        // a page decoded at a reduced size needs less memory than its full image
+        try (ImageProcessingScheduler.Permit permit = scheduler.acquire("process", 100000000, 256L * 1024 * 1024)) {
+            assertEquals(256L * 1024 * 1024, scheduler.getMemoryInUse());
+        }
+        assertEquals(0, scheduler.getMemoryInUse());
+    }
+
+    @Test
+    public void testAdaptiveLimit() {
+        ImageProcessingScheduler scheduler = new ImageProcessingScheduler();
+        scheduler.configure(8, 1024L * 1024 * 1024, true);
+        for (int i = 0; i < 50; i++) {
+            scheduler.addSample(1000000, 1000000, false);
+        }
+        assertEquals(8, scheduler.getCurrentLimit());
+        // the machine is overloaded, every page takes four times as long
+        for (int i = 0; i < 50; i++) {
+            scheduler.addSample(4000000, 1000000, false);
+        }
+        int loweredLimit = scheduler.getCurrentLimit();
+        assertTrue("limit should be lowered, is " + loweredLimit, loweredLimit < 8);
+        // back to normal with pages waiting
+        for (int i = 0; i < 500; i++) {
+            scheduler.addSample(1000000, 1000000, true);
+        }
+        assertEquals(8, scheduler.getCurrentLimit());
+    }
+
+    private Thread startPage(ImageProcessingScheduler scheduler, String name, long pixels, List<String> order) {
+        Thread thread = new Thread(() -> {
+            try (ImageProcessingScheduler.Permit permit = scheduler.acquire(name.substring(0, name.indexOf('/')), pixels)) {
+                order.add(name);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void waitForPages(ImageProcessingScheduler scheduler, List<String> order, int pages) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (order.size() + scheduler.getWaiting() < pages && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private void waitForWaiting(ImageProcessingScheduler scheduler, int waiting) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (scheduler.getWaiting() < waiting && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+}
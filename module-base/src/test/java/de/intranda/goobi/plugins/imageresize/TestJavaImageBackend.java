@@ -0,0 +1,124 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.Test;
+
+public class TestJavaImageBackend {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testCalculateSubsampling() {
+        // 16000 x 12000 pixels need 732 MB, every second pixel fits into 256 MB
+        assertEquals(2, JavaImageBackend.calculateSubsampling(16000, 12000, 1500, 256 * MB));
+        // never subsample below the target size, even if the budget is too small
+        assertEquals(10, JavaImageBackend.calculateSubsampling(16000, 12000, 1500, 1));
+        assertEquals(1, JavaImageBackend.calculateSubsampling(16000, 12000, 1500, 1024 * MB));
+        assertEquals(1, JavaImageBackend.calculateSubsampling(1000, 800, 1500, 1));
+    }
+
+    @Test
+    public void testResizeCascade() throws IOException, ImageProcessingException {
+        Path folder = Files.createTempDirectory("cascade");
+        Path source = folder.resolve("page.png");
+        Path watermark = folder.resolve("watermark.png");
+        ImageIO.write(createImage(1200, 800, Color.WHITE), "png", source.toFile());
+        ImageIO.write(createImage(100, 50, Color.RED), "png", watermark.toFile());
+        Path large = folder.resolve("large.png");
+        Path small = folder.resolve("small.png");
+        WatermarkDescription wd = new WatermarkDescription(true, watermark, null, "southeast", 10, 10, null, null, null);
+
+        new JavaImageBackend().resizeCascade(source,
+                Arrays.asList(new ImageProcessingBackend.Derivative(large, 600, true), new ImageProcessingBackend.Derivative(small, 150, false)),
+                Collections.singletonList(wd), Collections.singletonList(new int[] { 100, 50 }));
+
+        BufferedImage largeImage = ImageIO.read(large.toFile());
+        BufferedImage smallImage = ImageIO.read(small.toFile());
+        assertEquals(600, largeImage.getWidth());
+        assertEquals(400, largeImage.getHeight());
+        assertEquals(150, smallImage.getWidth());
+        assertEquals(100, smallImage.getHeight());
+        assertTrue(isWatermarked(largeImage));
+        // the small derivative is scaled from the large one before the watermark was drawn
+        assertFalse(isWatermarked(smallImage));
+    }
+
+    @Test
+    public void testRenderTextIntoSmallBox() throws IOException, ImageProcessingException {
+        Path target = Files.createTempDirectory("text").resolve("watermark.png");
+        WatermarkDescription wd = new WatermarkDescription(false, null, "Goobi.io", "southeast", 10, 10, "Arial", "100x4", "240x40");
+        new JavaImageBackend().renderText(wd, target);
+        BufferedImage image = ImageIO.read(target.toFile());
+        assertEquals(100, image.getWidth());
+        assertEquals(4, image.getHeight());
+    }
+
+    @Test(expected = ImageProcessingException.class)
+    public void testRenderTextIntoEmptyBox() throws IOException, ImageProcessingException {
+        Path target = Files.createTempDirectory("text").resolve("watermark.png");
+        WatermarkDescription wd = new WatermarkDescription(false, null, "Goobi.io", "southeast", 10, 10, "Arial", "100x0", "240x40");
+        new JavaImageBackend().renderText(wd, target);
+    }
+
+    @Test
+    public void testWritePyramidTiff() throws IOException, ImageProcessingException {
+        Path folder = Files.createTempDirectory("pyramid");
+        Path target = folder.resolve("page.tif");
+        for (String compression : PyramidTiff.COMPRESSIONS) {
+            JavaImageBackend.writePyramidTiff(createImage(1000, 700, Color.WHITE), target, new PyramidTiff(compression, 80, 256));
+            try (ImageInputStream iis = ImageIO.createImageInputStream(target.toFile())) {
+                ImageReader reader = ImageIO.getImageReaders(iis).next();
+                reader.setInput(iis);
+                // 1000x700, 500x350 and 250x175
+                assertEquals(compression, 3, reader.getNumImages(true));
+                assertTrue(reader.isImageTiled(0));
+                assertEquals(256, reader.getTileWidth(0));
+                assertEquals(1000, reader.getWidth(0));
+                assertEquals(500, reader.getWidth(1));
+                assertEquals(175, reader.getHeight(2));
+                TIFFDirectory reduced = TIFFDirectory.createFromMetadata(reader.getImageMetadata(1));
+                assertEquals(BaselineTIFFTagSet.NEW_SUBFILE_TYPE_REDUCED_RESOLUTION,
+                        reduced.getTIFFField(BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE).getAsLong(0));
+                reader.dispose();
+            }
+        }
+    }
+
+    private static BufferedImage createImage(int width, int height, Color color) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+
+    private static boolean isWatermarked(BufferedImage image) {
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if ((image.getRGB(x, y) & 0xffffff) != 0xffffff) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
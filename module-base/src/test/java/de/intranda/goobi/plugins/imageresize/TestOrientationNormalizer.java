@@ -0,0 +1,75 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class TestOrientationNormalizer {
+
+    @Test
+    public void testJpegWithExifOrientation() throws IOException {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "jpeg", jpeg);
+        byte[] original = jpeg.toByteArray();
+
+        // APP1 segment with a big endian TIFF structure containing only the orientation
+        ByteBuffer app1 = ByteBuffer.allocate(2 + 2 + 6 + 8 + 2 + 12 + 4).order(ByteOrder.BIG_ENDIAN);
+        app1.put((byte) 0xff).put((byte) 0xe1).putShort((short) (app1.capacity() - 2));
+        app1.put("Exif".getBytes()).put((byte) 0).put((byte) 0);
+        app1.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+        app1.putShort((short) 1);
+        app1.putShort((short) 274).putShort((short) 3).putInt(1).putShort((short) 8).putShort((short) 0);
+        app1.putInt(0);
+
+        ByteArrayOutputStream withExif = new ByteArrayOutputStream();
+        withExif.write(original, 0, 2);
+        withExif.write(app1.array());
+        withExif.write(original, 2, original.length - 2);
+        Path file = Files.createTempFile("orientation", ".jpg");
+        Files.write(file, withExif.toByteArray());
+        assertArrayEquals(new int[] { 300, 200, 8 }, ImageHeaderReader.read(file));
+
+        assertTrue(OrientationNormalizer.normalize(file));
+        assertArrayEquals(new int[] { 300, 200, 1 }, ImageHeaderReader.read(file));
+        // only the tag value has changed
+        byte[] normalized = Files.readAllBytes(file);
+        assertEquals(withExif.size(), normalized.length);
+        int differences = 0;
+        for (int i = 0; i < normalized.length; i++) {
+            if (normalized[i] != withExif.toByteArray()[i]) {
+                differences++;
+            }
+        }
+        assertEquals(1, differences);
+    }
+
+    @Test
+    public void testFormats() throws IOException {
+        Path dir = Files.createTempDirectory("orientation");
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        Path tiff = dir.resolve("image.tif");
+        ImageIO.write(image, "tiff", tiff.toFile());
+        byte[] before = Files.readAllBytes(tiff);
+        assertTrue(OrientationNormalizer.normalize(tiff));
+        assertTrue(Arrays.equals(before, Files.readAllBytes(tiff)));
+
+        // not supported, left to exiftool
+        Path png = dir.resolve("image.png");
+        ImageIO.write(image, "png", png.toFile());
+        assertFalse(OrientationNormalizer.normalize(png));
+    }
+}
@@ -0,0 +1,57 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Test;
+
+public class TestProcessingManifest {
+
+    @Test
+    public void testUnchangedImageIsUpToDate() throws IOException {
+        Path dir = Files.createTempDirectory("manifest");
+        Path source = Files.write(dir.resolve("00000001.tif"), new byte[] { 1, 2, 3 });
+        Path target = Files.write(dir.resolve("result.tif"), new byte[] { 1 });
+
+        ProcessingManifest manifest = ProcessingManifest.load(dir, true);
+        assertFalse("new manifest should not match the fingerprint", manifest.checkConfigFingerprint("abc"));
+        assertFalse("unknown image should not be up to date", manifest.isUpToDate(source, target));
+        manifest.update(source);
+        manifest.save();
+
+        manifest = ProcessingManifest.load(dir, true);
+        assertTrue("fingerprint should be stored", manifest.checkConfigFingerprint("abc"));
+        assertTrue("processed image should be up to date", manifest.isUpToDate(source, target));
+
+        Files.setLastModifiedTime(source, FileTime.fromMillis(Files.getLastModifiedTime(source).toMillis() + 10000));
+        assertFalse("touched image should not be up to date", manifest.isUpToDate(source, target));
+    }
+
+    @Test
+    public void testIsManifestFile() throws IOException {
+        Path dir = Files.createTempDirectory("manifest");
+        ProcessingManifest.load(dir, false).save();
+        assertTrue(ProcessingManifest.isManifestFile(dir.resolve(ProcessingManifest.FILENAME)));
+        assertTrue(ProcessingManifest.isManifestFile(dir.resolve(ProcessingManifest.FILENAME + ".tmp")));
+        assertFalse(ProcessingManifest.isManifestFile(dir.resolve("00000001.tif")));
+    }
+
+    @Test
+    public void testChangedConfigurationDiscardsEntries() throws IOException {
+        Path dir = Files.createTempDirectory("manifest");
+        Path source = Files.write(dir.resolve("00000001.tif"), new byte[] { 1, 2, 3 });
+
+        ProcessingManifest manifest = ProcessingManifest.load(dir, false);
+        manifest.checkConfigFingerprint("abc");
+        manifest.update(source);
+        assertEquals(1, manifest.getFilenames().size());
+        assertFalse(manifest.checkConfigFingerprint("def"));
+        assertTrue(manifest.getFilenames().isEmpty());
+    }
+}
@@ -0,0 +1,38 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestStageMetrics {
+
+    @Test
+    public void testStatistics() {
+        StageMetrics parent = new StageMetrics(10, null);
+        StageMetrics metrics = new StageMetrics(100, parent);
+        for (int millis = 1; millis <= 100; millis++) {
+            metrics.add("resize", TimeUnit.MILLISECONDS.toNanos(millis), 10, 1);
+        }
+        metrics.record("composite", System.nanoTime(), 0, 0);
+
+        List<StageStatistics> statistics = metrics.getStatistics();
+        assertEquals(2, statistics.size());
+        StageStatistics resize = statistics.get(0);
+        assertEquals("resize", resize.getStage());
+        assertEquals(100, resize.getCount());
+        assertEquals(50, resize.getP50Millis());
+        assertEquals(95, resize.getP95Millis());
+        assertEquals(100, resize.getMaxMillis());
+        assertEquals(1000, resize.getBytesIn());
+        assertEquals(100, resize.getBytesOut());
+
+        // the parent only keeps the 10 most recent samples for the percentiles, but counts everything
+        StageStatistics parentResize = parent.getStatistics().get(0);
+        assertEquals(100, parentResize.getCount());
+        assertEquals(100, parentResize.getMaxMillis());
+        assertEquals(95, parentResize.getP50Millis());
+    }
+}
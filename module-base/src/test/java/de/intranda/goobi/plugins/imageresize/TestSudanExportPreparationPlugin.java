@@ -1,5 +1,7 @@
 package de.intranda.goobi.plugins.imageresize;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -24,6 +26,19 @@ public class TestSudanExportPreparationPlugin {
         assertTrue("list for for 'mycollection' should not be empty", !shouldNotBeEmpty.isEmpty());
     }
 
+    @Test
+    public void testCalculateResizedDimensions() {
+        assertArrayEquals(new int[] { 1500, 1000 }, ImageResizeAndWatermarkPlugin.calculateResizedDimensions(3000, 2000, "TopLeft", 1500));
+        assertArrayEquals(new int[] { 1000, 1500 }, ImageResizeAndWatermarkPlugin.calculateResizedDimensions(3000, 2000, "RightTop", 1500));
+        assertArrayEquals(new int[] { 800, 600 }, ImageResizeAndWatermarkPlugin.calculateResizedDimensions(800, 600, "Undefined", 1500));
+    }
+
+    @Test
+    public void testGetWatermarkScaleFactor() {
+        assertEquals(100, ImageResizeAndWatermarkPlugin.getWatermarkScaleFactor(new int[] { 1500, 1000 }, new int[] { 400, 200 }));
+        assertEquals(50, ImageResizeAndWatermarkPlugin.getWatermarkScaleFactor(new int[] { 1000, 1500 }, new int[] { 1600, 200 }));
+    }
+
     private XMLConfiguration readConfig() throws ConfigurationException {
         File configFile = new File("src/test/resources/testconfig.xml");
         XMLConfiguration xmlConfig = new XMLConfiguration(configFile);
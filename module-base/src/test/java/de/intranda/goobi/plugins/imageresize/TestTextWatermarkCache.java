@@ -0,0 +1,33 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestTextWatermarkCache {
+
+    @Test
+    public void testSizeLimitEvictsEntriesUsedToday() throws IOException, ImageProcessingException, InterruptedException {
+        Path cacheDir = Files.createTempDirectory("textcache");
+        TextWatermarkCache cache = new TextWatermarkCache(cacheDir, 1);
+        JavaImageBackend backend = new JavaImageBackend();
+
+        Path first = cache.get(createWatermark("first"), backend);
+        Files.setLastModifiedTime(first, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+        Path second = cache.get(createWatermark("second"), backend);
+
+        assertFalse("entry used an hour ago should be evicted", Files.exists(first));
+        assertTrue("returned entry should be kept", Files.exists(second));
+    }
+
+    private static WatermarkDescription createWatermark(String text) {
+        return new WatermarkDescription(false, null, text, "southeast", 10, 10, "Arial", "200x50", "240x40");
+    }
+}
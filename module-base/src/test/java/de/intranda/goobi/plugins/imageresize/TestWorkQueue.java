@@ -0,0 +1,77 @@
+package de.intranda.goobi.plugins.imageresize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class TestWorkQueue {
+
+    @Test
+    public void testChunksAreClaimedOnce() throws IOException {
+        Path queueDir = Files.createTempDirectory("queue");
+        List<String> pages = Arrays.asList("00000001.tif", "00000002.tif", "00000003.tif", "00000004.tif", "00000005.tif");
+        WorkQueue queue = WorkQueue.create(queueDir, "job", new Properties(), Collections.emptyMap(), pages, 2, 120);
+        assertEquals(Collections.singletonList(queue.getJobDir()), WorkQueue.listJobs(queueDir));
+
+        WorkQueue.Lease first = queue.claim("worker-1");
+        WorkQueue.Lease second = WorkQueue.open(queue.getJobDir()).claim("worker-2");
+        WorkQueue.Lease third = queue.claim("worker-1");
+        assertEquals(Arrays.asList("00000001.tif", "00000002.tif"), first.getPages());
+        assertEquals(Arrays.asList("00000003.tif", "00000004.tif"), second.getPages());
+        assertEquals(Collections.singletonList("00000005.tif"), third.getPages());
+        assertNull(queue.claim("worker-3"));
+
+        first.complete(Collections.emptyMap());
+        second.complete(Collections.singletonMap("00000004.tif", "broken\nimage"));
+        assertFalse(queue.isComplete());
+        third.complete(Collections.emptyMap());
+        assertTrue(queue.isComplete());
+        assertEquals(Collections.singletonMap("00000004.tif", "broken image"), queue.getFailures());
+        assertNull(queue.claim("worker-3"));
+    }
+
+    @Test
+    public void testExpiredLeaseIsClaimedAgain() throws IOException {
+        WorkQueue queue = WorkQueue.create(Files.createTempDirectory("queue"), "job", new Properties(), Collections.emptyMap(),
+                Collections.singletonList("00000001.tif"), 10, 60);
+        WorkQueue.Lease lease = queue.claim("worker-1");
+        assertNull(queue.claim("worker-2"));
+
+        // no heartbeat for longer than the lease timeout
+        Path leaseFile = queue.getJobDir().resolve(lease.getChunkName() + ".lease");
+        Files.setLastModifiedTime(leaseFile, FileTime.fromMillis(System.currentTimeMillis() - 61000));
+        WorkQueue.Lease takenOver = queue.claim("worker-2");
+        assertNotNull(takenOver);
+        assertFalse(lease.heartbeat());
+        assertTrue(takenOver.heartbeat());
+
+        // releasing the lost lease must not remove the lease of the new owner
+        lease.release();
+        assertNull(queue.claim("worker-3"));
+    }
+
+    @Test
+    public void testCancelledJobIsNotClaimed() throws IOException {
+        Path queueDir = Files.createTempDirectory("queue");
+        WorkQueue queue = WorkQueue.create(queueDir, "job", new Properties(), Collections.emptyMap(),
+                Collections.singletonList("00000001.tif"), 10, 60);
+        queue.cancel();
+        assertNull(queue.claim("worker-1"));
+        assertTrue(WorkQueue.listJobs(queueDir).isEmpty());
+        queue.delete();
+        assertFalse(Files.exists(queue.getJobDir()));
+    }
+}
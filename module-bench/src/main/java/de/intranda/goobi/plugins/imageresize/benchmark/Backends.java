@@ -0,0 +1,23 @@
+package de.intranda.goobi.plugins.imageresize.benchmark;
+
+import de.intranda.goobi.plugins.imageresize.GraphicsMagickBackend;
+import de.intranda.goobi.plugins.imageresize.ImageProcessingBackend;
+import de.intranda.goobi.plugins.imageresize.JavaImageBackend;
+
+/**
+ * Creates the backends to compare. The paths of the external programs can be set with the system properties "bench.gm", "bench.convert" and
+ * "bench.exiftool".
+ */
+final class Backends {
+
+    private Backends() {
+    }
+
+    static ImageProcessingBackend create(String name) {
+        if ("java".equals(name)) {
+            return new JavaImageBackend();
+        }
+        return new GraphicsMagickBackend(System.getProperty("bench.gm", "/usr/bin/gm"), System.getProperty("bench.convert", "/usr/bin/convert"),
+                System.getProperty("bench.exiftool", "/usr/bin/exiftool"));
+    }
+}
@@ -0,0 +1,88 @@
+package de.intranda.goobi.plugins.imageresize.benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.SubnodeConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.imageresize.ConfigurationIndex;
+import de.intranda.goobi.plugins.imageresize.ImageResizeAndWatermarkPlugin;
+import de.intranda.goobi.plugins.imageresize.WatermarkDescription;
+
+/**
+ * Measures how long it takes to find the settings for a step: the XPath lookup of the &lt;config&gt; block plus the linear
+ * &lt;imageConfig&gt; matching, compared to the compiled configuration index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConfigResolutionBenchmark {
+
+    /**
+     * Number of &lt;config&gt; blocks and of &lt;imageConfig&gt; rules per block.
+     */
+    @Param({ "1", "20" })
+    private int blocks;
+
+    private XMLConfiguration pluginConfig;
+    private ConfigurationIndex index;
+    private String projectName;
+    private String collectionName;
+
+    @Setup
+    public void setup() throws IOException, ConfigurationException {
+        Path configFile = Files.createTempFile("plugin_intranda_step_image_resize_and_watermark", ".xml");
+        configFile.toFile().deleteOnExit();
+        try (Writer writer = Files.newBufferedWriter(configFile, StandardCharsets.UTF_8)) {
+            writer.write("<config_plugin>\n");
+            for (int block = 0; block < blocks; block++) {
+                writer.write("<config><project>project" + block + "</project><step>*</step>\n");
+                for (int rule = 0; rule < blocks; rule++) {
+                    writer.write("<imageConfig collection=\"collection" + rule + "\" mediaType=\"*\"><resizeTo>1500</resizeTo>"
+                            + "<watermark><image>/tmp/watermark.png</image></watermark></imageConfig>\n");
+                }
+                writer.write("</config>\n");
+            }
+            writer.write("</config_plugin>\n");
+        }
+        pluginConfig = new XMLConfiguration(configFile.toFile());
+        pluginConfig.setExpressionEngine(new XPathExpressionEngine());
+        index = new ConfigurationIndex(pluginConfig);
+        // the last block and the last rule, the worst case for a linear search
+        projectName = "project" + (blocks - 1);
+        collectionName = "collection" + (blocks - 1);
+    }
+
+    @Benchmark
+    public List<WatermarkDescription> xpathLookup() {
+        SubnodeConfiguration config = pluginConfig.configurationAt("//config[./project = '" + projectName + "'][./step = '*']");
+        return ImageResizeAndWatermarkPlugin.findWatermarkDescriptions(collectionName, "Monograph", config);
+    }
+
+    @Benchmark
+    public List<WatermarkDescription> configurationIndex() {
+        return index.getStepSettings(projectName, "Some step").resolve(collectionName, "Monograph").getWatermarkDescriptions();
+    }
+}
@@ -0,0 +1,224 @@
+package de.intranda.goobi.plugins.imageresize.benchmark;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Creates a synthetic set of scanned pages for the benchmarks, without network access or real scans. The pages are written in different sizes,
+ * formats and orientations. The content is generated from a fixed seed, so every run measures the same images.
+ *
+ * File names have the form "page-SIZE-oORIENTATION.EXT", e.g. "page-medium-o6.jpg".
+ */
+public class CorpusGenerator {
+
+    /**
+     * Name, width and height of the generated page sizes. "large" is a 600 dpi A3 scan.
+     */
+    static final Object[][] SIZES = { { "small", 1240, 1754 }, { "medium", 2480, 3508 }, { "large", 7016, 9920 } };
+    static final String[] FORMATS = { "tif", "jpg", "png" };
+    static final int[] ORIENTATIONS = { 1, 6 };
+
+    private static final String DEFAULT_DIRECTORY = "target/bench-corpus";
+
+    private CorpusGenerator() {
+    }
+
+    /**
+     * Generates the corpus into the given directory, or into target/bench-corpus.
+     */
+    public static void main(String[] args) throws IOException {
+        Path directory = ensureCorpus(args.length > 0 ? Paths.get(args[0]) : getDirectory());
+        System.out.println("Benchmark corpus in " + directory.toAbsolutePath());
+    }
+
+    /**
+     * Returns the corpus directory configured with the system property "bench.corpus".
+     */
+    public static Path getDirectory() {
+        return Paths.get(System.getProperty("bench.corpus", DEFAULT_DIRECTORY));
+    }
+
+    /**
+     * Creates all files of the corpus that do not exist yet.
+     *
+     * @return the corpus directory
+     */
+    public static Path ensureCorpus(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        for (Object[] size : SIZES) {
+            BufferedImage page = null;
+            for (String format : FORMATS) {
+                for (int orientation : ORIENTATIONS) {
+                    if ("png".equals(format) && orientation != 1) {
+                        // PNG has no orientation tag
+                        continue;
+                    }
+                    Path file = directory.resolve(getFilename((String) size[0], orientation, format));
+                    if (Files.exists(file)) {
+                        continue;
+                    }
+                    if (page == null) {
+                        page = createPage((int) size[1], (int) size[2], new Random(size[0].hashCode()));
+                    }
+                    writePage(page, file, format, orientation);
+                }
+            }
+        }
+        Path watermark = directory.resolve("watermark.png");
+        if (!Files.exists(watermark)) {
+            ImageIO.write(createWatermark(), "png", watermark.toFile());
+        }
+        return directory;
+    }
+
+    public static String getFilename(String size, int orientation, String format) {
+        return "page-" + size + "-o" + orientation + "." + format;
+    }
+
+    /**
+     * Returns all pages of the corpus.
+     */
+    public static List<Path> listPages(Path directory) throws IOException {
+        List<Path> pages = new ArrayList<>();
+        for (Object[] size : SIZES) {
+            for (String format : FORMATS) {
+                for (int orientation : ORIENTATIONS) {
+                    Path file = directory.resolve(getFilename((String) size[0], orientation, format));
+                    if (Files.exists(file)) {
+                        pages.add(file);
+                    }
+                }
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Draws something that compresses like a scanned text page: a paper tone with a gradient, noise, and lines of dark "words".
+     */
+    static BufferedImage createPage(int width, int height, Random random) {
+        BufferedImage page = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = page.createGraphics();
+        try {
+            g.setPaint(new GradientPaint(0, 0, new Color(240, 232, 210), width, height, new Color(220, 210, 185)));
+            g.fillRect(0, 0, width, height);
+            int lineHeight = Math.max(8, height / 60);
+            int margin = width / 10;
+            for (int y = margin; y < height - margin; y += lineHeight * 3 / 2) {
+                int x = margin;
+                while (x < width - margin) {
+                    int wordWidth = lineHeight * (1 + random.nextInt(6));
+                    int gray = 20 + random.nextInt(50);
+                    g.setColor(new Color(gray, gray, gray + 10));
+                    g.fillRect(x, y, Math.min(wordWidth, width - margin - x), lineHeight);
+                    x += wordWidth + lineHeight / 2;
+                }
+            }
+            for (int i = 0; i < width * height / 200; i++) {
+                int gray = random.nextInt(256);
+                page.setRGB(random.nextInt(width), random.nextInt(height), new Color(gray, gray, gray).getRGB());
+            }
+        } finally {
+            g.dispose();
+        }
+        return page;
+    }
+
+    static BufferedImage createWatermark() {
+        BufferedImage watermark = new BufferedImage(900, 300, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = watermark.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setColor(new Color(255, 255, 255, 200));
+            g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 120));
+            g.drawString("Goobi.io", 60, 200);
+        } finally {
+            g.dispose();
+        }
+        return watermark;
+    }
+
+    private static void writePage(BufferedImage page, Path file, String format, int orientation) throws IOException {
+        switch (format) {
+            case "tif":
+                writeTiff(page, file, orientation);
+                break;
+            case "jpg":
+                writeJpeg(page, file, orientation);
+                break;
+            default:
+                ImageIO.write(page, format, file.toFile());
+                break;
+        }
+    }
+
+    private static void writeTiff(BufferedImage page, Path file, int orientation) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(file.toFile())) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(page), param);
+            TIFFDirectory directory = TIFFDirectory.createFromMetadata(metadata);
+            directory.addTIFFField(new TIFFField(BaselineTIFFTagSet.getInstance().getTag(BaselineTIFFTagSet.TAG_ORIENTATION), orientation));
+            writer.write(null, new IIOImage(page, null, directory.getAsMetadata()), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Writes a JPEG file with an EXIF segment that only contains the orientation.
+     */
+    private static void writeJpeg(BufferedImage page, Path file, int orientation) throws IOException {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(page, "jpeg", jpeg);
+        byte[] data = jpeg.toByteArray();
+
+        ByteBuffer app1 = ByteBuffer.allocate(2 + 2 + 6 + 8 + 2 + 12 + 4).order(ByteOrder.BIG_ENDIAN);
+        app1.put((byte) 0xff).put((byte) 0xe1).putShort((short) (app1.capacity() - 2));
+        app1.put("Exif".getBytes(StandardCharsets.US_ASCII)).put((byte) 0).put((byte) 0);
+        app1.order(ByteOrder.LITTLE_ENDIAN);
+        app1.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        app1.putShort((short) 1);
+        app1.putShort((short) 274).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+        app1.putInt(0);
+
+        // the EXIF segment follows the JFIF segment, which has to be the first one after the SOI marker
+        int position = 2;
+        if ((data[2] & 0xff) == 0xff && (data[3] & 0xff) == 0xe0) {
+            position += 2 + ((data[4] & 0xff) << 8 | (data[5] & 0xff));
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(data, 0, position);
+            out.write(app1.array());
+            out.write(data, position, data.length - position);
+        }
+    }
+}
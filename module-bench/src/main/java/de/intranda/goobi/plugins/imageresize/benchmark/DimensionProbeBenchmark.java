@@ -0,0 +1,63 @@
+package de.intranda.goobi.plugins.imageresize.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.imageresize.ImageDimensionProbe;
+import de.intranda.goobi.plugins.imageresize.ImageHeaderReader;
+import de.intranda.goobi.plugins.imageresize.ImageProcessingException;
+import de.intranda.goobi.plugins.imageresize.JavaImageBackend;
+
+/**
+ * Measures reading the dimensions of an image: parsing the header directly, asking ImageIO, and the cached probe used during a run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DimensionProbeBenchmark {
+
+    @Param({ "page-medium-o1.tif", "page-medium-o6.jpg", "page-medium-o1.png", "page-large-o1.tif" })
+    private String image;
+
+    private Path imagePath;
+    private JavaImageBackend backend;
+    private ImageDimensionProbe probe;
+
+    @Setup
+    public void setup() throws IOException {
+        imagePath = CorpusGenerator.ensureCorpus(CorpusGenerator.getDirectory()).resolve(image);
+        backend = new JavaImageBackend();
+        probe = new ImageDimensionProbe(backend);
+    }
+
+    @Benchmark
+    public int[] headerReader() throws IOException {
+        return ImageHeaderReader.read(imagePath);
+    }
+
+    @Benchmark
+    public int[] imageIo() throws ImageProcessingException {
+        return backend.getImageDimensions(imagePath);
+    }
+
+    @Benchmark
+    public int[] cachedProbe() throws ImageProcessingException, InterruptedException {
+        return probe.getImageDimensions(imagePath);
+    }
+}
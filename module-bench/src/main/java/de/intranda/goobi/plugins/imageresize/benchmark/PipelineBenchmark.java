@@ -0,0 +1,102 @@
+package de.intranda.goobi.plugins.imageresize.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.imageresize.ImageDimensionProbe;
+import de.intranda.goobi.plugins.imageresize.ImageProcessingBackend;
+import de.intranda.goobi.plugins.imageresize.ImageProcessingException;
+import de.intranda.goobi.plugins.imageresize.ImageResizeAndWatermarkPlugin;
+import de.intranda.goobi.plugins.imageresize.WatermarkCache;
+import de.intranda.goobi.plugins.imageresize.WatermarkDescription;
+
+/**
+ * Measures the complete work for one page, resizing it to 1500 pixels and adding an image watermark, in the same way the plugin does it. The
+ * separate pipeline resizes first and composites the watermark into the result, the fused pipeline does both in a single call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class PipelineBenchmark {
+
+    private static final int SIZE = 1500;
+
+    @Param({ "java", "graphicsmagick" })
+    private String backendName;
+
+    @Param({ "false", "true" })
+    private boolean fused;
+
+    @Param({ "page-small-o1.jpg", "page-medium-o1.tif", "page-medium-o6.jpg", "page-large-o6.tif" })
+    private String image;
+
+    private ImageProcessingBackend backend;
+    private ImageDimensionProbe dimensionProbe;
+    private WatermarkCache watermarkCache;
+    private Path source;
+    private Path target;
+    private List<WatermarkDescription> watermarkDescriptions;
+    private List<int[]> watermarkDimensions;
+
+    @Setup
+    public void setup() throws IOException, ImageProcessingException, InterruptedException {
+        Path corpus = CorpusGenerator.ensureCorpus(CorpusGenerator.getDirectory());
+        source = corpus.resolve(image);
+        target = Files.createTempDirectory("pipeline-bench").resolve(image);
+        backend = Backends.create(backendName);
+        dimensionProbe = new ImageDimensionProbe(backend);
+        watermarkCache = new WatermarkCache(backend, dimensionProbe, 32);
+        Path watermark = corpus.resolve("watermark.png");
+        watermarkDescriptions = Collections.singletonList(new WatermarkDescription(true, watermark, null, "southeast", 100, 100, null, null, null));
+        watermarkDimensions = Collections.singletonList(watermarkCache.getDimensions(watermark));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        watermarkCache.close();
+        backend.close();
+        try (Stream<Path> files = Files.walk(target.getParent())) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Path processPage() throws ImageProcessingException, InterruptedException {
+        if (fused) {
+            backend.resizeAndWatermark(source, target, SIZE, watermarkDescriptions, watermarkDimensions);
+            return target;
+        }
+        backend.resize(source, target, SIZE);
+        for (WatermarkDescription wd : watermarkDescriptions) {
+            int[] canvasDimensions = dimensionProbe.getImageDimensions(target);
+            int[] dimensions = watermarkCache.getDimensions(wd.getImagePath());
+            int scaleFactor = ImageResizeAndWatermarkPlugin.getWatermarkScaleFactor(canvasDimensions, dimensions);
+            try (WatermarkCache.ScaledWatermark watermark = watermarkCache.acquire(wd.getImagePath(), scaleFactor)) {
+                backend.composite(target, watermark.getPath(), wd);
+            }
+        }
+        return target;
+    }
+}
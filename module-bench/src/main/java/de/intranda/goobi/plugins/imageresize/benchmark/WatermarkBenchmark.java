@@ -0,0 +1,100 @@
+package de.intranda.goobi.plugins.imageresize.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.imageresize.ImageDimensionProbe;
+import de.intranda.goobi.plugins.imageresize.ImageProcessingBackend;
+import de.intranda.goobi.plugins.imageresize.ImageProcessingException;
+import de.intranda.goobi.plugins.imageresize.TextWatermarkCache;
+import de.intranda.goobi.plugins.imageresize.WatermarkCache;
+import de.intranda.goobi.plugins.imageresize.WatermarkDescription;
+
+/**
+ * Measures the preparation of watermarks: scaling a watermark image, getting it from the per-run cache, rendering a text watermark, and
+ * getting a rendered text watermark from the persistent cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WatermarkBenchmark {
+
+    @Param({ "java", "graphicsmagick" })
+    private String backendName;
+
+    private ImageProcessingBackend backend;
+    private Path watermark;
+    private Path workDir;
+    private WatermarkCache watermarkCache;
+    private TextWatermarkCache textWatermarkCache;
+    private WatermarkDescription textWatermark;
+
+    @Setup
+    public void setup() throws IOException, ImageProcessingException, InterruptedException {
+        watermark = CorpusGenerator.ensureCorpus(CorpusGenerator.getDirectory()).resolve("watermark.png");
+        workDir = Files.createTempDirectory("watermark-bench");
+        backend = Backends.create(backendName);
+        watermarkCache = new WatermarkCache(backend, new ImageDimensionProbe(backend), 32);
+        textWatermarkCache = new TextWatermarkCache(workDir.resolve("text-cache"), 64L * 1024 * 1024);
+        textWatermark = new WatermarkDescription(false, null, "Digitised by the Goobi team", "southeast", 100, 100, "Open-Sans", "450x200",
+                "240x40");
+        // fill the caches for the cache hit benchmarks
+        watermarkCache.acquire(watermark, 50).close();
+        textWatermarkCache.get(textWatermark, backend);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        watermarkCache.close();
+        backend.close();
+        try (Stream<Path> files = Files.walk(workDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Path scaleWatermark() throws ImageProcessingException, InterruptedException {
+        Path target = workDir.resolve("scaled.png");
+        backend.scale(watermark, target, 50);
+        return target;
+    }
+
+    @Benchmark
+    public Path cachedScaledWatermark() throws ImageProcessingException, InterruptedException {
+        try (WatermarkCache.ScaledWatermark scaled = watermarkCache.acquire(watermark, 50)) {
+            return scaled.getPath();
+        }
+    }
+
+    @Benchmark
+    public Path renderTextWatermark() throws ImageProcessingException, InterruptedException {
+        Path target = workDir.resolve("text.png");
+        backend.renderText(textWatermark, target);
+        return target;
+    }
+
+    @Benchmark
+    public Path cachedTextWatermark() throws ImageProcessingException, InterruptedException {
+        return textWatermarkCache.get(textWatermark, backend);
+    }
+}